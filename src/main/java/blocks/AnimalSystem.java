@@ -3,75 +3,185 @@ package blocks;
 import com.jme3.math.FastMath;
 import com.jme3.math.Quaternion;
 import com.jme3.math.Vector3f;
+import com.jme3.scene.Spatial;
+import lombok.Getter;
+import lombok.NonNull;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
-public class AnimalSystem {
-  private final List<AnimalEntity> entities;
-  private final ChunkGrid chunkGrid;
+/**
+ * Simulates the animals. Their state is kept in parallel primitive arrays indexed by animal, so
+ * that the update allocates nothing per animal and can be split into batches that run on the common
+ * fork-join pool. The spatials are synced afterwards in one pass on the render thread.
+ *
+ * <p>Animals are bucketed by chunk in an {@link EntitySpatialIndex}. Animals in chunks that leave
+ * the chunk grid are frozen and hidden until their chunk is attached again, see {@link
+ * ChunkGrid#addChunkListener(ChunkGrid.ChunkListener)}.
+ */
+public class AnimalSystem implements ChunkGrid.ChunkListener {
+  public static final Vector3f SIZE = new Vector3f(1, 1, 1);
 
-  public AnimalSystem(ChunkGrid chunkGrid) {
-    this.entities = new ArrayList<>();
-    this.chunkGrid = chunkGrid;
+  // animals per parallel batch, smaller populations are updated on the calling thread
+  private static final int BATCH_SIZE = 1024;
+
+  private final VoxelPhysics voxelPhysics;
+  private final EntityRenderer entityRenderer;
+  private final EntitySpatialIndex spatialIndex;
+
+  @Getter private int count = 0;
+  // center body locations
+  private float[] xs = new float[16];
+  private float[] ys = new float[16];
+  private float[] zs = new float[16];
+  // horizontal movement directions and the matching rotation around the y axis
+  private float[] directionXs = new float[16];
+  private float[] directionZs = new float[16];
+  private float[] angles = new float[16];
+  private boolean[] hasTurned = new boolean[16];
+  private float[] timesLeftToMoveInDirection = new float[16];
+  private float[] verticalSpeeds = new float[16];
+  private long[] randomStates = new long[16];
+  private boolean[] isFrozen = new boolean[16];
+  private Spatial[] spatials = new Spatial[16];
+
+  private final Quaternion rotation = new Quaternion();
+
+  public AnimalSystem(
+      @NonNull ChunkGrid chunkGrid,
+      @NonNull VoxelPhysics voxelPhysics,
+      @NonNull EntityRenderer entityRenderer) {
+    this.voxelPhysics = voxelPhysics;
+    this.entityRenderer = entityRenderer;
+    this.spatialIndex = new EntitySpatialIndex(chunkGrid.getChunkSize());
+  }
+
+  /**
+   * @param location center body location
+   * @return the index of the new animal
+   */
+  public int add(@NonNull Vector3f location) {
+    if (count == xs.length) grow(count * 2);
+
+    int i = count++;
+    xs[i] = location.x;
+    ys[i] = location.y;
+    zs[i] = location.z;
+    directionXs[i] = 1;
+    directionZs[i] = 0;
+    timesLeftToMoveInDirection[i] = 0;
+    verticalSpeeds[i] = 0;
+    randomStates[i] = (long) (location.x * location.y * location.z);
+    spatials[i] = entityRenderer.createAnimalSpatial();
+    spatials[i].setLocalTranslation(location);
+    spatialIndex.put(i, location.x, location.y, location.z);
+    return i;
   }
 
-  public void add(AnimalEntity entities) {
-    this.entities.add(entities);
+  private void grow(int capacity) {
+    xs = Arrays.copyOf(xs, capacity);
+    ys = Arrays.copyOf(ys, capacity);
+    zs = Arrays.copyOf(zs, capacity);
+    directionXs = Arrays.copyOf(directionXs, capacity);
+    directionZs = Arrays.copyOf(directionZs, capacity);
+    angles = Arrays.copyOf(angles, capacity);
+    hasTurned = Arrays.copyOf(hasTurned, capacity);
+    timesLeftToMoveInDirection = Arrays.copyOf(timesLeftToMoveInDirection, capacity);
+    verticalSpeeds = Arrays.copyOf(verticalSpeeds, capacity);
+    randomStates = Arrays.copyOf(randomStates, capacity);
+    isFrozen = Arrays.copyOf(isFrozen, capacity);
+    spatials = Arrays.copyOf(spatials, capacity);
   }
 
+  /** Must be called from the render thread. */
   public void update(float tpf) {
-    for (AnimalEntity entity : entities) {
-      if (entity.timeLeftToMoveInDirection <= 0) {
-        entity.direction =
-            new Vector3f(entity.random.nextFloat(2) - 1, 0, entity.random.nextFloat(2) - 1);
-        float angle = FastMath.atan2(entity.direction.z, entity.direction.x);
-        entity.spatial.setLocalRotation(
-            new Quaternion().fromAngleAxis(-angle, new Vector3f(0, 1, 0)));
-        entity.timeLeftToMoveInDirection = entity.random.nextInt(10) + 1;
+    int batchCount = (count + BATCH_SIZE - 1) / BATCH_SIZE;
+    if (batchCount <= 1) {
+      simulate(0, count, tpf);
+    } else {
+      IntStream.range(0, batchCount)
+          .parallel()
+          .forEach(
+              batch ->
+                  simulate(batch * BATCH_SIZE, Math.min((batch + 1) * BATCH_SIZE, count), tpf));
+    }
+
+    for (int i = 0; i < count; i++) {
+      if (isFrozen[i]) continue;
+      spatialIndex.put(i, xs[i], ys[i], zs[i]);
+      spatials[i].setLocalTranslation(xs[i], ys[i], zs[i]);
+      if (hasTurned[i]) {
+        spatials[i].setLocalRotation(rotation.fromAngleAxis(angles[i], Vector3f.UNIT_Y));
+        hasTurned[i] = false;
       }
+    }
+  }
+
+  // only touches the state of the animals in [start, end)
+  private void simulate(int start, int end, float tpf) {
+    // reused for all animals of the batch
+    VoxelPhysics.Body body = new VoxelPhysics.Body(SIZE.x, SIZE.y, SIZE.z, 1);
+    for (int i = start; i < end; i++) {
+      if (isFrozen[i]) continue;
 
-      entity.timeLeftToMoveInDirection -= tpf;
-
-      entity.location.addLocal(entity.direction.mult(tpf));
-
-      if (getAdjacentBlock(entity, true, 0).isPresent()) {
-        if (getAdjacentBlock(entity, true, 1).isEmpty()) {
-          entity.location.y += 1;
-        } else {
-          alignLocationWithWorldCoordinates(entity);
-        }
-      } else {
-        // this is not good enough to make it fall into single block holes but that's ok for now
-        if (getAdjacentBlock(entity, true, -1).isEmpty()
-            && getAdjacentBlock(entity, false, -1).isEmpty()) {
-          entity.location.y -= 1;
-        }
+      if (timesLeftToMoveInDirection[i] <= 0) {
+        directionXs[i] = nextFloat(i) * 2 - 1;
+        directionZs[i] = nextFloat(i) * 2 - 1;
+        angles[i] = -FastMath.atan2(directionZs[i], directionXs[i]);
+        hasTurned[i] = true;
+        timesLeftToMoveInDirection[i] = (int) (nextFloat(i) * 10) + 1;
       }
 
-      entity.spatial.setLocalTranslation(entity.location);
+      timesLeftToMoveInDirection[i] -= tpf;
+
+      body.setLocation(xs[i], ys[i], zs[i]);
+      body.verticalSpeed = verticalSpeeds[i];
+      voxelPhysics.step(body, directionXs[i] * tpf, directionZs[i] * tpf, tpf);
+      xs[i] = body.x;
+      ys[i] = body.y;
+      zs[i] = body.z;
+      verticalSpeeds[i] = body.verticalSpeed;
     }
   }
 
-  private static void alignLocationWithWorldCoordinates(AnimalEntity entity) {
-    Vector3f frontLocation = entity.location.add(entity.size.divide(2).multLocal(entity.direction));
-    Vector3f diff =
-        new Vector3f(
-            entity.direction.x * Math.abs(frontLocation.x % 1),
-            0,
-            entity.direction.z * Math.abs(frontLocation.z % 1));
-    entity.location.subtractLocal(diff);
+  @Override
+  public void chunkAttached(Chunk chunk) {
+    spatialIndex.forEachInChunk(
+        chunk.getKey(),
+        i -> {
+          isFrozen[i] = false;
+          entityRenderer.show(spatials[i]);
+        });
+  }
+
+  @Override
+  public void chunkDetached(Chunk chunk) {
+    spatialIndex.forEachInChunk(
+        chunk.getKey(),
+        i -> {
+          isFrozen[i] = true;
+          entityRenderer.hide(spatials[i]);
+        });
+  }
+
+  /** Visits the indexes of the animals whose center is at most radius away from the location. */
+  public void forEachAnimalInRadius(
+      @NonNull Vector3f location, float radius, @NonNull IntConsumer action) {
+    spatialIndex.forEachInRadius(location.x, location.y, location.z, radius, action);
+  }
+
+  /** @return the center body location of the animal */
+  public Vector3f getLocation(int i, @NonNull Vector3f store) {
+    return store.set(xs[i], ys[i], zs[i]);
   }
 
-  private Optional<Block> getAdjacentBlock(AnimalEntity entity, boolean checkInFront, int yOffset) {
-    int factor = checkInFront ? 1 : -1;
-    Vector3f blockLocation =
-        entity.location.add(
-            entity.size.divide(2 * factor).multLocal(entity.direction).addLocal(0, yOffset, 0));
-    return chunkGrid.getBlock(
-        (int) Math.floor(blockLocation.x),
-        (int) Math.floor(blockLocation.y),
-        (int) Math.floor(blockLocation.z));
+  // SplitMix64, uniform in [0, 1)
+  private float nextFloat(int i) {
+    long z = randomStates[i] += 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    z ^= z >>> 31;
+    return (z >>> 40) * 0x1.0p-24f;
   }
 }
@@ -12,15 +12,22 @@ import com.jme3.light.AmbientLight;
 import com.jme3.light.DirectionalLight;
 import com.jme3.light.Light;
 import com.jme3.math.ColorRGBA;
+import com.jme3.math.FastMath;
 import com.jme3.math.Vector3f;
+import com.jme3.renderer.RenderManager;
 import com.jme3.shadow.DirectionalLightShadowRenderer;
 import com.jme3.shadow.EdgeFilteringMode;
 import com.jme3.system.AppSettings;
 import com.simsilica.mathd.Vec3i;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.text.CharacterIterator;
 import java.text.StringCharacterIterator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -40,6 +47,10 @@ public class App extends SimpleApplication {
   private BitmapText fpsValue;
   private BitmapText memoryValue;
   private BitmapText locationValue;
+  private BitmapText targetValue;
+  // the block at the crosshair, see simpleUpdate()
+  private final RaycastHit targetHit = new RaycastHit();
+  private final Vector3f camDirection = new Vector3f();
   private float secondCounter = 0;
   private int frameCounter = 0;
 
@@ -62,26 +73,70 @@ public class App extends SimpleApplication {
   private static final int CHUNK_HEIGHT = 32;
   private static final int CHUNK_DEPTH = 32;
 
+  // initial horizontal grid size, adjusted at runtime by the ViewDistanceController
   private static final int GRID_WIDTH = 40;
   private static final int GRID_HEIGHT = 5;
   private static final int GRID_DEPTH = 40;
+  private static final int MIN_GRID_WIDTH = 16;
+  private static final int MAX_GRID_WIDTH = 64;
+  private static final int TARGET_FPS = 60;
 
   public static final int WORLD_HEIGHT = GRID_HEIGHT * CHUNK_HEIGHT;
 
+  private static final float PREFETCH_LOOKAHEAD_SECONDS = 3;
+  private static final int PREFETCH_MAX_LOOKAHEAD_CHUNKS = 8;
+
+  private static final long CHUNK_CACHE_MAXIMUM_BYTES = Runtime.getRuntime().maxMemory() / 2;
+  private static final long COMPRESSED_CHUNK_CACHE_MAXIMUM_BYTES = 64 * 1024 * 1024;
+
+  // DELTA only stores the blocks that have been changed compared to the generated terrain
+  private static final PersistenceMode PERSISTENCE_MODE = PersistenceMode.DELTA;
+
+  // keeps finished chunk meshes on disk so that revisited chunks don't have to be meshed again
+  private static final boolean ENABLE_MESH_CACHE = true;
+
+  // meshes each chunk with one material for opaque and one for transparent blocks, the shader
+  // picks the block colors by the block type in each vertex
+  private static final boolean USE_VERTEX_BLOCK_TYPES = false;
+
+  // chunks per side of the regions whose meshes are merged to reduce draw calls, 0 disables it
+  private static final int REGION_BATCH_SIZE = 4;
+
+  // levels of detail of each heightmap tile
+  private static final int HEIGHTMAP_LEVEL_COUNT = 5;
+
   private static final boolean ENABLE_SHADOWS = true;
   private static final int SHADOWMAP_SIZE = 1024;
+  // horizontal chunk distances around the grid center within which chunks cast and receive
+  // shadows, so that the shadow pass doesn't grow with the view distance
+  private static final int SHADOW_CAST_DISTANCE = 4;
+  private static final int SHADOW_RECEIVE_DISTANCE = 8;
+
+  // up to which distance the block at the crosshair is shown in the HUD
+  private static final float TARGET_MAX_DISTANCE = 16;
 
   ChunkGrid chunkGrid;
+  private ViewDistanceController viewDistanceController;
+  private ChunkPrefetcher chunkPrefetcher;
 
   private ExecutorService chunkBlockGenerationExecutorService;
   private ExecutorService chunkMeshGenerationExecutorService;
+  private ExecutorService chunkPrefetchExecutorService;
+  private ExecutorService regionBatchExecutorService;
+  private ExecutorService waterSurfaceExecutorService;
 
   boolean isShiftKeyPressed = false;
 
   private static final long seed = 100;
   private TerrainGenerator terrainGenerator;
+  private RegionFileStore worldStore;
+  // one per level of detail, empty if the mesh cache is disabled
+  private final List<RegionFileStore> meshStores = new ArrayList<>();
+  private HeightmapTiles heightmapTiles;
 
   private AnimalSystem animalSystem;
+  private EntityRenderer entityRenderer;
+  private VoxelPhysics voxelPhysics;
 
   private boolean shouldKeepCamLocation = false;
 
@@ -89,6 +144,10 @@ public class App extends SimpleApplication {
   public void destroy() {
     chunkBlockGenerationExecutorService.shutdownNow();
     chunkMeshGenerationExecutorService.shutdownNow();
+    chunkPrefetchExecutorService.shutdownNow();
+    regionBatchExecutorService.shutdownNow();
+    waterSurfaceExecutorService.shutdownNow();
+    closeWorldStore();
     super.destroy();
   }
 
@@ -126,49 +185,52 @@ public class App extends SimpleApplication {
         Executors.newFixedThreadPool(8, new ChunkGenerationThreadFactory());
     chunkMeshGenerationExecutorService =
         Executors.newFixedThreadPool(8, new ChunkGenerationThreadFactory());
+    chunkPrefetchExecutorService =
+        Executors.newFixedThreadPool(
+            2, new ChunkGenerationThreadFactory("chunkPrefetcher-", Thread.MIN_PRIORITY));
+    regionBatchExecutorService =
+        Executors.newSingleThreadExecutor(
+            new ChunkGenerationThreadFactory("regionBatcher-", Thread.MIN_PRIORITY));
+    waterSurfaceExecutorService =
+        Executors.newSingleThreadExecutor(
+            new ChunkGenerationThreadFactory("waterSurfaceBuilder-", Thread.MIN_PRIORITY));
     initGrid();
+    initHeightmapTiles();
+
+    voxelPhysics = new VoxelPhysics(chunkGrid);
+    entityRenderer = new EntityRenderer(assetManager);
+    rootNode.attachChild(entityRenderer.getNode());
 
     {
-      playerSystem = new PlayerSystem(chunkGrid);
+      playerSystem = new PlayerSystem(voxelPhysics);
 
       int spawnX = 62;
       int spawnZ = 0;
-      Terrain terrainAtSpawn = terrainGenerator.terrainAt(spawnX, spawnZ);
-      int scaledHeightAtSpawn = (int) ((terrainAtSpawn.height() + 1) / 2 * WORLD_HEIGHT);
+      int scaledHeightAtSpawn = surfaceHeightAt(spawnX, spawnZ);
       playerEntity =
           new PlayerEntity(
               new Vector3f(spawnX, scaledHeightAtSpawn + 1, spawnZ)
                   .addLocal(PlayerEntity.size.divide(2)),
-              assetManager);
+              entityRenderer);
       playerSystem.add(playerEntity);
-      rootNode.attachChild(playerEntity.spatial);
     }
 
-    animalSystem = new AnimalSystem(chunkGrid);
+    animalSystem = new AnimalSystem(chunkGrid, voxelPhysics, entityRenderer);
+    chunkGrid.addChunkListener(animalSystem);
 
     {
       int spawnX = 62;
       int spawnZ = 0;
-      Terrain terrainAtSpawn = terrainGenerator.terrainAt(spawnX, spawnZ);
-      int scaledHeightAtSpawn = (int) ((terrainAtSpawn.height() + 1) / 2 * WORLD_HEIGHT);
-      AnimalEntity animalEntity =
-          new AnimalEntity(
-              new Vector3f(0.5f + spawnX, scaledHeightAtSpawn + 1.5f, 0.5f + spawnZ), assetManager);
-      animalSystem.add(animalEntity);
-      rootNode.attachChild(animalEntity.spatial);
+      int scaledHeightAtSpawn = surfaceHeightAt(spawnX, spawnZ);
+      animalSystem.add(new Vector3f(0.5f + spawnX, scaledHeightAtSpawn + 1.5f, 0.5f + spawnZ));
     }
 
     Random random = new Random(seed);
     for (int i = 0; i < 10; i++) {
       int spawnX = random.nextInt(100);
       int spawnZ = random.nextInt(100);
-      Terrain terrainAtSpawn = terrainGenerator.terrainAt(spawnX, spawnZ);
-      int scaledHeightAtSpawn = (int) ((terrainAtSpawn.height() + 1) / 2 * WORLD_HEIGHT);
-      AnimalEntity animalEntity =
-          new AnimalEntity(
-              new Vector3f(0.5f + spawnX, scaledHeightAtSpawn + 1.5f, 0.5f + spawnZ), assetManager);
-      animalSystem.add(animalEntity);
-      rootNode.attachChild(animalEntity.spatial);
+      int scaledHeightAtSpawn = surfaceHeightAt(spawnX, spawnZ);
+      animalSystem.add(new Vector3f(0.5f + spawnX, scaledHeightAtSpawn + 1.5f, 0.5f + spawnZ));
     }
 
     rootNode.addLight(new AmbientLight(new ColorRGBA(0.2f, 0.2f, 0.2f, 1f)));
@@ -182,6 +244,8 @@ public class App extends SimpleApplication {
       dlsr.setLambda(0.55f);
       dlsr.setShadowIntensity(0.8f);
       dlsr.setEdgeFilteringMode(EdgeFilteringMode.PCF8);
+      // no shadows are received further away, so spread the shadow map over the receiving chunks
+      dlsr.setShadowZExtend((SHADOW_RECEIVE_DISTANCE + 1) * CHUNK_WIDTH * FastMath.sqrt(2));
       viewPort.addProcessor(dlsr);
     }
   }
@@ -191,6 +255,10 @@ public class App extends SimpleApplication {
 
     chunkBlockGenerationExecutorService.shutdownNow();
     chunkMeshGenerationExecutorService.shutdownNow();
+    chunkPrefetchExecutorService.shutdownNow();
+    regionBatchExecutorService.shutdownNow();
+    waterSurfaceExecutorService.shutdownNow();
+    closeWorldStore();
 
     rootNode.detachAllChildren();
     guiNode.detachAllChildren();
@@ -221,6 +289,17 @@ public class App extends SimpleApplication {
     inputManager.removeListener((AnalogListener) this::playerAnalogListener);
   }
 
+  private void closeWorldStore() {
+    chunkGrid.close();
+    try {
+      worldStore.close();
+      for (RegionFileStore meshStore : meshStores) meshStore.close();
+      meshStores.clear();
+    } catch (IOException e) {
+      log.warn("Could not close world store", e);
+    }
+  }
+
   private void initInputListeners() {
     inputManager.addMapping("resetGame", new KeyTrigger(KeyInput.KEY_R));
     inputManager.addMapping("changeCameraMode", new KeyTrigger(KeyInput.KEY_SPACE));
@@ -330,6 +409,19 @@ public class App extends SimpleApplication {
   }
 
   private void initGrid() {
+    try {
+      worldStore = new RegionFileStore(Path.of("world", Long.toString(seed)), GRID_HEIGHT);
+      if (ENABLE_MESH_CACHE) {
+        for (int lod = 0; lod < Chunk.LOD_COUNT; lod++) {
+          meshStores.add(
+              new RegionFileStore(
+                  Path.of("world", Long.toString(seed), "meshes", "lod" + lod), GRID_HEIGHT));
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
     chunkGrid =
         new ChunkGrid(
             new Vec3i(GRID_WIDTH, GRID_HEIGHT, GRID_DEPTH),
@@ -337,9 +429,56 @@ public class App extends SimpleApplication {
             cam.getLocation(),
             chunkBlockGenerationExecutorService,
             chunkMeshGenerationExecutorService,
-            new BlockMaterial(assetManager),
-            chunkBlockGenerator::generateBlocks);
+            waterSurfaceExecutorService,
+            new BlockMaterial(assetManager, USE_VERTEX_BLOCK_TYPES),
+            chunkBlockGenerator::generateBlocks,
+            CHUNK_CACHE_MAXIMUM_BYTES,
+            COMPRESSED_CHUNK_CACHE_MAXIMUM_BYTES,
+            worldStore,
+            PERSISTENCE_MODE,
+            meshStores.isEmpty() ? null : new MeshCache(List.copyOf(meshStores)));
     rootNode.attachChild(chunkGrid.getNode());
+    chunkGrid.setShadowDistances(SHADOW_CAST_DISTANCE, SHADOW_RECEIVE_DISTANCE);
+    if (REGION_BATCH_SIZE > 0) {
+      chunkGrid.setRegionBatcher(new RegionBatcher(REGION_BATCH_SIZE, regionBatchExecutorService));
+    }
+
+    viewDistanceController =
+        new ViewDistanceController(chunkGrid, MIN_GRID_WIDTH, MAX_GRID_WIDTH, TARGET_FPS);
+
+    chunkPrefetcher =
+        new ChunkPrefetcher(
+            chunkGrid,
+            chunkPrefetchExecutorService,
+            PREFETCH_LOOKAHEAD_SECONDS,
+            PREFETCH_MAX_LOOKAHEAD_CHUNKS);
+    chunkGrid.setChunkPrefetcher(chunkPrefetcher);
+  }
+
+  private void initHeightmapTiles() {
+    try {
+      heightmapTiles =
+          new HeightmapTiles(
+              terrainGenerator,
+              seed,
+              Path.of("world", Long.toString(seed), "heightmap"),
+              HEIGHTMAP_LEVEL_COUNT,
+              chunkPrefetchExecutorService);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    // tiles follow the loaded terrain
+    chunkGrid.addChunkListener(heightmapTiles);
+  }
+
+  /** @return the surface height in blocks, falls back to the generator until the tile exists */
+  private int surfaceHeightAt(int x, int z) {
+    float height =
+        heightmapTiles
+            .tileAt(x, z)
+            .map(tile -> tile.heightAt(0, x, z))
+            .orElseGet(() -> terrainGenerator.terrainAt(x, z).height());
+    return (int) ((height + 1) / 2 * WORLD_HEIGHT);
   }
 
   private void createCrosshair() {
@@ -385,6 +524,16 @@ public class App extends SimpleApplication {
     locationValue.setLocalTranslation(
         locationLabel.getLineWidth(), settings.getHeight() - fpsLabel.getLineHeight() * 2, 0);
     guiNode.attachChild(locationValue);
+
+    BitmapText targetLabel = new BitmapText(guiFont);
+    targetLabel.setText("Target: ");
+    targetLabel.setLocalTranslation(0, settings.getHeight() - fpsLabel.getLineHeight() * 3, 0);
+    guiNode.attachChild(targetLabel);
+
+    targetValue = new BitmapText(guiFont);
+    targetValue.setLocalTranslation(
+        targetLabel.getLineWidth(), settings.getHeight() - fpsLabel.getLineHeight() * 3, 0);
+    guiNode.attachChild(targetValue);
   }
 
   // from https://stackoverflow.com/a/3758880/122594
@@ -406,6 +555,7 @@ public class App extends SimpleApplication {
   @Override
   public void simpleUpdate(float tpf) {
     super.simpleUpdate(tpf);
+    viewDistanceController.frameStarted();
 
     memoryValue.setText(
         humanReadableByteCountBin(
@@ -429,22 +579,57 @@ public class App extends SimpleApplication {
             (int) playerEntity.location.y,
             (int) playerEntity.location.z));
 
+    chunkPrefetcher.update(playerEntity);
     chunkGrid.centerAroundWorldLocation(cam.getLocation());
     chunkGrid.update();
+    chunkGrid.updateVisibility(cam.getLocation());
 
     playerSystem.update(tpf);
     animalSystem.update(tpf);
+    entityRenderer.update();
 
     cam.setLocation(playerEntity.location.add(0, PlayerEntity.size.y / 2, 0));
     cam.setRotation(playerEntity.rotation);
+
+    cam.getDirection(camDirection);
+    if (chunkGrid.raycast(cam.getLocation(), camDirection, TARGET_MAX_DISTANCE, targetHit)) {
+      targetValue.setText(
+          String.format(
+              "%s at %d, %d, %d",
+              targetHit.block.type(),
+              targetHit.blockX,
+              targetHit.blockY,
+              targetHit.blockZ));
+    } else {
+      targetValue.setText("-");
+    }
+  }
+
+  @Override
+  public void simpleRender(RenderManager rm) {
+    super.simpleRender(rm);
+    viewDistanceController.frameRendered();
   }
 
   private static class ChunkGenerationThreadFactory implements ThreadFactory {
     private final AtomicInteger index = new AtomicInteger(1);
+    private final String namePrefix;
+    private final int priority;
+
+    ChunkGenerationThreadFactory() {
+      this("chunkGenerator-", Thread.NORM_PRIORITY);
+    }
+
+    ChunkGenerationThreadFactory(String namePrefix, int priority) {
+      this.namePrefix = namePrefix;
+      this.priority = priority;
+    }
 
     @Override
     public Thread newThread(Runnable r) {
-      return new Thread(r, "chunkGenerator-" + index.getAndIncrement());
+      Thread thread = new Thread(r, namePrefix + index.getAndIncrement());
+      thread.setPriority(priority);
+      return thread;
     }
   }
 }
@@ -27,45 +27,31 @@ public class BlockMaterial {
   }
 
   private final Map<BlockType, Material> materials;
+  // null unless chunks are meshed with per-vertex block types, see usesVertexBlockTypes()
+  private final Material opaqueBlocksMaterial;
+  private final Material transparentBlocksMaterial;
 
   public BlockMaterial(AssetManager assetManager) {
+    this(assetManager, false);
+  }
+
+  /**
+   * @param usesVertexBlockTypes whether chunks are meshed with one material for all opaque and one
+   *     for all transparent blocks, passing the block type ordinal in TexCoord2.x
+   */
+  public BlockMaterial(AssetManager assetManager, boolean usesVertexBlockTypes) {
     BlockType[] blockTypes = BlockType.values();
     materials = new HashMap<>(blockTypes.length, 1f);
+    Texture texture = assetManager.loadTexture(new TextureKey("tile.png", true));
+    texture.setWrap(Texture.WrapMode.Repeat);
 
     for (BlockType blockType : blockTypes) {
       Material material = new Material(assetManager, "BlockLighting.j3md");
-      Texture texture = assetManager.loadTexture(new TextureKey("tile.png", true));
-      texture.setWrap(Texture.WrapMode.Repeat);
       material.setTexture("DiffuseMap", texture);
+      // light and ambient occlusion baked by the chunk mesher, see ChunkLight
+      material.setBoolean("UseVertexColor", true);
 
-      Vector4f[] gradient =
-          switch (blockType) {
-            case DIRT -> new Vector4f[] {
-              hexColor("503926").toVector4f(), hexColor("6F4E37").toVector4f()
-            };
-            case GRASS -> new Vector4f[] {
-              hexColor("125F2F").toVector4f(), hexColor("219149").toVector4f()
-            };
-            case LEAF -> new Vector4f[] {
-              hexColor("006409", 0.95f).toVector4f(), hexColor("005909", 0.95f).toVector4f(),
-              hexColor("005109", 0.95f).toVector4f(), hexColor("004607", 0.95f).toVector4f(),
-              hexColor("003516", 1f).toVector4f(),
-            };
-            case ROCK -> new Vector4f[] {
-              hexColor("514C49").toVector4f(),
-              hexColor("777370").toVector4f(),
-              hexColor("6A5C53").toVector4f()
-            };
-            case WATER -> new Vector4f[] {
-              hexColor("0E0085", 0.8f).toVector4f(), hexColor("1E339A", 0.8f).toVector4f()
-            };
-            case WOOD -> new Vector4f[] {
-              hexColor("503926").toVector4f(), hexColor("64412A").toVector4f(),
-              hexColor("59311D").toVector4f(), hexColor("602D1C").toVector4f(),
-              hexColor("60281B").toVector4f(),
-            };
-          };
-
+      Vector4f[] gradient = gradient(blockType);
       material.setParam("OverlayGradient", VarType.Vector4Array, gradient);
       material.setInt("OverlayGradientSteps", gradient.length);
 
@@ -73,16 +59,99 @@ public class BlockMaterial {
         material.setBoolean("AnimateAsWater", true);
       }
 
-      if (gradient[0].w < 1f) {
+      if (blockType.isTransparent()) {
         material.setTransparent(true);
         material.getAdditionalRenderState().setBlendMode(RenderState.BlendMode.Alpha);
       }
 
       materials.put(blockType, material);
     }
+
+    if (usesVertexBlockTypes) {
+      opaqueBlocksMaterial = createVertexBlockTypeMaterial(assetManager, texture);
+      transparentBlocksMaterial = createVertexBlockTypeMaterial(assetManager, texture);
+      transparentBlocksMaterial.setTransparent(true);
+      transparentBlocksMaterial
+          .getAdditionalRenderState()
+          .setBlendMode(RenderState.BlendMode.Alpha);
+    } else {
+      opaqueBlocksMaterial = null;
+      transparentBlocksMaterial = null;
+    }
+  }
+
+  // the gradients of all block types in one array, each padded to the longest gradient
+  private static Material createVertexBlockTypeMaterial(
+      AssetManager assetManager, Texture texture) {
+    BlockType[] blockTypes = BlockType.values();
+    int stride = 0;
+    for (BlockType blockType : blockTypes) {
+      stride = Math.max(stride, gradient(blockType).length);
+    }
+
+    Vector4f[] gradients = new Vector4f[blockTypes.length * stride];
+    float[] gradientSteps = new float[blockTypes.length];
+    for (BlockType blockType : blockTypes) {
+      Vector4f[] gradient = gradient(blockType);
+      for (int i = 0; i < stride; i++) {
+        gradients[blockType.ordinal() * stride + i] = gradient[Math.min(i, gradient.length - 1)];
+      }
+      gradientSteps[blockType.ordinal()] = gradient.length;
+    }
+
+    Material material = new Material(assetManager, "BlockLighting.j3md");
+    material.setTexture("DiffuseMap", texture);
+    material.setBoolean("SeparateTexCoord", true);
+    material.setBoolean("UseVertexColor", true);
+    material.setInt("BlockTypeCount", blockTypes.length);
+    material.setInt("BlockTypeGradientStride", stride);
+    material.setParam("BlockTypeGradients", VarType.Vector4Array, gradients);
+    material.setParam("BlockTypeGradientSteps", VarType.FloatArray, gradientSteps);
+    material.setInt("WaterBlockType", BlockType.WATER.ordinal());
+    return material;
+  }
+
+  private static Vector4f[] gradient(BlockType blockType) {
+    return switch (blockType) {
+      case DIRT -> new Vector4f[] {
+        hexColor("503926").toVector4f(), hexColor("6F4E37").toVector4f()
+      };
+      case GRASS -> new Vector4f[] {
+        hexColor("125F2F").toVector4f(), hexColor("219149").toVector4f()
+      };
+      case LEAF -> new Vector4f[] {
+        hexColor("006409").toVector4f(), hexColor("005909").toVector4f(),
+        hexColor("005109").toVector4f(), hexColor("004607").toVector4f(),
+        hexColor("003516").toVector4f(),
+      };
+      case ROCK -> new Vector4f[] {
+        hexColor("514C49").toVector4f(),
+        hexColor("777370").toVector4f(),
+        hexColor("6A5C53").toVector4f()
+      };
+      case WATER -> new Vector4f[] {
+        hexColor("0E0085", 0.8f).toVector4f(), hexColor("1E339A", 0.8f).toVector4f()
+      };
+      case WOOD -> new Vector4f[] {
+        hexColor("503926").toVector4f(), hexColor("64412A").toVector4f(),
+        hexColor("59311D").toVector4f(), hexColor("602D1C").toVector4f(),
+        hexColor("60281B").toVector4f(),
+      };
+    };
   }
 
   public Material forBlock(Block block) {
     return materials.get(block.type());
   }
+
+  public boolean usesVertexBlockTypes() {
+    return opaqueBlocksMaterial != null;
+  }
+
+  /** @return the shared material of all blocks if {@link #usesVertexBlockTypes()} */
+  public Material forBlocks(boolean isTransparent) {
+    if (!usesVertexBlockTypes())
+      throw new IllegalStateException("block materials don't use vertex block types");
+    return isTransparent ? transparentBlocksMaterial : opaqueBlocksMaterial;
+  }
 }
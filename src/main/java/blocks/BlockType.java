@@ -11,8 +11,28 @@ public enum BlockType {
   WOOD(ColorRGBA.Brown);
 
   public final ColorRGBA color;
+  /** block light in [0, ChunkLight.MAX_LIGHT] that the block emits, see {@link ChunkLight} */
+  public final int lightEmission;
 
   BlockType(ColorRGBA color) {
+    this(color, 0);
+  }
+
+  BlockType(ColorRGBA color, int lightEmission) {
     this.color = color;
+    this.lightEmission = lightEmission;
+  }
+
+  /** @return whether blocks of this type are alpha blended and sorted, only water is */
+  public boolean isTransparent() {
+    return this == WATER;
+  }
+
+  /**
+   * @return whether blocks of this type are drawn as opaque geometry but let light and sight
+   *     through like transparent blocks
+   */
+  public boolean isCutout() {
+    return this == LEAF;
   }
 }
@@ -1,5 +1,6 @@
 package blocks;
 
+import com.jme3.math.ColorRGBA;
 import com.jme3.math.FastMath;
 import com.jme3.math.Quaternion;
 import com.jme3.math.Vector2f;
@@ -11,11 +12,15 @@ import com.simsilica.mathd.Vec3i;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.NonNull;
+import lombok.Setter;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 // TODO optimize https://0fps.net/2012/01/14/an-analysis-of-minecraft-like-engines/
 @EqualsAndHashCode
@@ -23,10 +28,30 @@ import java.util.*;
 @Slf4j
 public class Chunk {
   @ToString.Include @Getter private final Vec3i location;
+  /** packed location, see {@link ChunkIndex#key(int, int, int)} */
+  @Getter private final long key;
   @ToString.Include @Getter private final Vec3i size;
   @Getter private final Block[][][] blocks;
 
-  private Node node;
+  /** number of levels of detail, level n merges 2^n voxels per axis */
+  public static final int LOD_COUNT = 4;
+
+  // indexed by level of detail
+  private final Node[] nodes = new Node[LOD_COUNT];
+  // written once a node is complete, read by the chunk cache weigher without locking
+  private volatile int meshMemoryUsage = 0;
+
+  // baked into the level 0 mesh, only kept while that mesh exists, see getNode(int)
+  @EqualsAndHashCode.Exclude private volatile ChunkLight light;
+  // stands in for the blocks below the world, which block all light
+  private static final Block BELOW_WORLD_BLOCK = new Block(BlockType.ROCK, ColorRGBA.Black, false);
+  // vertex color factors by ambient occlusion value, 0 is the most occluded
+  private static final float[] AMBIENT_OCCLUSION_FACTORS = {0.5f, 0.7f, 0.85f, 1f};
+
+  // bump whenever the mesher output changes, so that cached meshes are invalidated
+  private static final int MESHER_VERSION = 5;
+
+  private static final Face[] faces = Face.values();
 
   private static final Vec3i UNIT_X = new Vec3i(1, 0, 0);
   private static final Vec3i UNIT_Y = new Vec3i(0, 1, 0);
@@ -51,6 +76,19 @@ public class Chunk {
 
   private final BlockMaterial blockMaterial;
 
+  // direct links to resident neighbor chunks, indexed by face ordinal, maintained by the ChunkGrid
+  @EqualsAndHashCode.Exclude
+  private final AtomicReferenceArray<Chunk> neighbors = new AtomicReferenceArray<>(6);
+
+  @EqualsAndHashCode.Exclude private volatile boolean isResident = true;
+
+  // bit (6 * a + b) is set if faces a and b are connected through non-opaque blocks, see
+  // isConnected(). -1 until it has been calculated, which connects all faces
+  @EqualsAndHashCode.Exclude private volatile long faceConnectivity = -1;
+
+  /** whether the blocks differ from the stored blocks and have to be saved */
+  @EqualsAndHashCode.Exclude @Getter @Setter private volatile boolean isDirty = false;
+
   public Chunk(
       @NonNull Vec3i location,
       @NonNull Vec3i size,
@@ -66,28 +104,257 @@ public class Chunk {
     this.chunkGrid = chunkGrid;
 
     this.location = location;
+    this.key = ChunkIndex.key(location.x, location.y, location.z);
 
     this.size = size;
     this.blocks = blocks;
     this.blockMaterial = blockMaterial;
   }
 
-  public boolean isNodeCalculationDone() {
-    return node != null;
+  public synchronized boolean isNodeCalculationDone() {
+    for (Node node : nodes) {
+      if (node != null) return true;
+    }
+    return false;
   }
 
-  public synchronized Node getNode() {
-    if (node == null) {
-      node = new Node();
+  /** @return approximate number of bytes used by the block storage and the mesh buffers */
+  public int getMemoryUsage() {
+    // array headers are 16 bytes, references are 4 bytes assuming compressed oops
+    ChunkLight light = this.light;
+    int lightMemoryUsage = light != null ? light.getMemoryUsage() : 0;
+    return 16 + size.x * (16 + size.y * (16 + size.z * 4)) + meshMemoryUsage + lightMemoryUsage;
+  }
+
+  /** @return the resident neighbor chunk or null if it isn't linked */
+  public Chunk getNeighbor(Face face) {
+    Chunk neighbor = neighbors.get(face.ordinal());
+    return neighbor != null && neighbor.isResident ? neighbor : null;
+  }
+
+  /** Like {@link #getNeighbor(Face)} but falls back to loading the neighbor from the grid. */
+  public Chunk getOrLoadNeighbor(Face face) {
+    Chunk neighbor = getNeighbor(face);
+    return neighbor != null
+        ? neighbor
+        : chunkGrid.getChunk(location.x + face.dx, location.y + face.dy, location.z + face.dz);
+  }
+
+  /** Walks the neighbor links to the chunk at the given chunk location. */
+  public Chunk getChunkAt(int chunkX, int chunkY, int chunkZ) {
+    Chunk chunk = this;
+    while (chunk != null && chunk.location.x != chunkX) {
+      chunk = chunk.getNeighbor(chunk.location.x < chunkX ? Face.RIGHT : Face.LEFT);
+    }
+    while (chunk != null && chunk.location.y != chunkY) {
+      chunk = chunk.getNeighbor(chunk.location.y < chunkY ? Face.TOP : Face.BOTTOM);
+    }
+    while (chunk != null && chunk.location.z != chunkZ) {
+      chunk = chunk.getNeighbor(chunk.location.z < chunkZ ? Face.BACK : Face.FRONT);
+    }
+    return chunk != null ? chunk : chunkGrid.getChunk(chunkX, chunkY, chunkZ);
+  }
+
+  void link(Face face, Chunk neighbor) {
+    neighbors.set(face.ordinal(), neighbor);
+  }
+
+  /** Marks this chunk as evicted and removes all links between it and its neighbors. */
+  void unlinkAll() {
+    isResident = false;
+    for (Face face : Face.values()) {
+      Chunk neighbor = neighbors.getAndSet(face.ordinal(), null);
+      if (neighbor != null) neighbor.neighbors.compareAndSet(face.opposite().ordinal(), this, null);
+    }
+  }
+
+  public Node getNode() {
+    return getNode(0);
+  }
+
+  /**
+   * @param lod level of detail, meshes are created from voxels that merge 2^lod blocks per axis,
+   *     choosing the dominant block
+   */
+  public synchronized Node getNode(int lod) {
+    if (lod < 0 || lod >= LOD_COUNT)
+      throw new IllegalArgumentException("lod must be in [0, " + LOD_COUNT + ") but got " + lod);
+
+    if (faceConnectivity == -1) faceConnectivity = calculateFaceConnectivity();
+
+    if (nodes[lod] == null) {
+      if (lod == 0 && light == null) light = calculateLight();
+      Node node = new Node();
+      // the geometries inherit it, so that the chunk grid can change it per chunk
+      node.setShadowMode(RenderQueue.ShadowMode.CastAndReceive);
       node.setLocalTranslation(
           this.location.x * size.x, this.location.y * size.y, this.location.z * size.z);
-      if (node.getChildren().isEmpty()) initNode();
+      nodes[lod] = node;
+      initNode(node, lod);
+      updateMeshMemoryUsage();
     }
 
-    return node;
+    return nodes[lod];
+  }
+
+  /**
+   * @return whether it's possible to look through the chunk when entering it through one face and
+   *     leaving it through the other, always true until the chunk has been meshed
+   */
+  public boolean isConnected(Face from, Face to) {
+    return (faceConnectivity & (1L << (from.ordinal() * 6 + to.ordinal()))) != 0;
+  }
+
+  // flood fills the regions of non-opaque blocks and connects all faces that each region touches
+  private long calculateFaceConnectivity() {
+    boolean[][][] isVisited = new boolean[size.x][size.y][size.z];
+    int[] queue = new int[size.x * size.y * size.z];
+    long connectivity = 0;
+
+    for (int startX = 0; startX < size.x; startX++) {
+      for (int startY = 0; startY < size.y; startY++) {
+        for (int startZ = 0; startZ < size.z; startZ++) {
+          if (isVisited[startX][startY][startZ] || isOpaque(blocks[startX][startY][startZ])) {
+            continue;
+          }
+
+          int touchedFaces = 0;
+          int head = 0;
+          int tail = 0;
+          queue[tail++] = (startX * size.y + startY) * size.z + startZ;
+          isVisited[startX][startY][startZ] = true;
+
+          while (head < tail) {
+            int index = queue[head++];
+            int x = index / (size.y * size.z);
+            int y = index / size.z % size.y;
+            int z = index % size.z;
+
+            for (Face face : faces) {
+              int nextX = x + face.dx;
+              int nextY = y + face.dy;
+              int nextZ = z + face.dz;
+              boolean isOutside =
+                  nextX < 0
+                      || nextY < 0
+                      || nextZ < 0
+                      || nextX >= size.x
+                      || nextY >= size.y
+                      || nextZ >= size.z;
+              if (isOutside) {
+                touchedFaces |= 1 << face.ordinal();
+              } else if (!isVisited[nextX][nextY][nextZ]
+                  && !isOpaque(blocks[nextX][nextY][nextZ])) {
+                isVisited[nextX][nextY][nextZ] = true;
+                queue[tail++] = (nextX * size.y + nextY) * size.z + nextZ;
+              }
+            }
+          }
+
+          for (Face from : faces) {
+            if ((touchedFaces & (1 << from.ordinal())) == 0) continue;
+            for (Face to : faces) {
+              if ((touchedFaces & (1 << to.ordinal())) != 0) {
+                connectivity |= 1L << (from.ordinal() * 6 + to.ordinal());
+              }
+            }
+          }
+        }
+      }
+    }
+
+    return connectivity;
+  }
+
+  /**
+   * Lights the chunk and its border from the blocks of the neighbor chunks, letting sky light in
+   * where no chunk above has an opaque block in the column.
+   */
+  private ChunkLight calculateLight() {
+    int layerCount = chunkGrid.getGridSize().y;
+    // neighbor chunks by offset + 1, null outside of the world
+    Chunk[][][] chunks = new Chunk[3][3][3];
+    for (int dx = -1; dx <= 1; dx++) {
+      for (int dy = -1; dy <= 1; dy++) {
+        for (int dz = -1; dz <= 1; dz++) {
+          int chunkY = location.y + dy;
+          if (chunkY < 0 || chunkY >= layerCount) continue;
+          chunks[dx + 1][dy + 1][dz + 1] =
+              dx == 0 && dy == 0 && dz == 0
+                  ? this
+                  : getChunkAt(location.x + dx, chunkY, location.z + dz);
+        }
+      }
+    }
+
+    Block[][][] borderedBlocks = new Block[size.x + 2][size.y + 2][size.z + 2];
+    for (int x = -1; x <= size.x; x++) {
+      for (int y = -1; y <= size.y; y++) {
+        for (int z = -1; z <= size.z; z++) {
+          Chunk chunk = chunks[chunkOffset(x, size.x) + 1][chunkOffset(y, size.y) + 1][
+              chunkOffset(z, size.z) + 1];
+          borderedBlocks[x + 1][y + 1][z + 1] =
+              chunk != null
+                  ? chunk.blocks[Math.floorMod(x, size.x)][Math.floorMod(y, size.y)][
+                      Math.floorMod(z, size.z)]
+                  : location.y + chunkOffset(y, size.y) < 0 ? BELOW_WORLD_BLOCK : null;
+        }
+      }
+    }
+
+    // the columns start above the top border, which lies in the first layer of the chunk above
+    boolean[] isOpenToSky = new boolean[(size.x + 2) * (size.z + 2)];
+    for (int x = -1; x <= size.x; x++) {
+      for (int z = -1; z <= size.z; z++) {
+        int chunkX = location.x + chunkOffset(x, size.x);
+        int chunkZ = location.z + chunkOffset(z, size.z);
+        boolean isOpen = true;
+        for (int chunkY = location.y + 1; isOpen && chunkY < layerCount; chunkY++) {
+          Chunk chunk = getChunkAt(chunkX, chunkY, chunkZ);
+          for (int y = chunkY == location.y + 1 ? 1 : 0; isOpen && y < size.y; y++) {
+            isOpen = !isOpaque(chunk.blocks[Math.floorMod(x, size.x)][y][Math.floorMod(z, size.z)]);
+          }
+        }
+        isOpenToSky[(x + 1) * (size.z + 2) + z + 1] = isOpen;
+      }
+    }
+
+    return new ChunkLight(size, borderedBlocks, isOpenToSky);
+  }
+
+  // -1, 0 or 1 depending on whether the coordinate lies before, in or after the chunk
+  private static int chunkOffset(int coordinate, int size) {
+    return coordinate < 0 ? -1 : coordinate >= size ? 1 : 0;
+  }
+
+  // cutouts let light and sight through like ChunkLight does
+  private static boolean isOpaque(Block block) {
+    return block != null && !block.isTransparent() && !block.type().isCutout();
+  }
+
+  /** Drops the nodes of all other levels of detail to free their mesh memory. */
+  public synchronized void releaseNodesExcept(int lod) {
+    for (int i = 0; i < LOD_COUNT; i++) {
+      if (i != lod) nodes[i] = null;
+    }
+    if (lod != 0) light = null;
+    updateMeshMemoryUsage();
+  }
+
+  /** @return the highest level of detail whose voxel size divides the chunk size */
+  public static int maxLod(Vec3i size) {
+    int lod = 0;
+    while (lod + 1 < LOD_COUNT
+        && size.x % (2 << lod) == 0
+        && size.y % (2 << lod) == 0
+        && size.z % (2 << lod) == 0) {
+      lod++;
+    }
+    return lod;
   }
 
   private int equalBlockCountInDirection(
+      Voxels voxels,
       Block block,
       Vec3i blockLocation,
       Vec3i axisDirection,
@@ -95,13 +362,16 @@ public class Chunk {
       boolean[][][] mask) {
     int length = 1;
     Vec3i nextLocation = blockLocation.add(axisDirection);
+    // merged faces share their vertex colors, so they must be lit the same
+    int shade = faceShade(voxels, blockLocation, visibilityDirection);
 
-    while (nextLocation.x < size.x
-        && nextLocation.y < size.y
-        && nextLocation.z < size.z
-        && isVisibleFrom(block, nextLocation, visibilityDirection)
+    while (nextLocation.x < voxels.size.x
+        && nextLocation.y < voxels.size.y
+        && nextLocation.z < voxels.size.z
+        && isVisibleFrom(voxels, block, nextLocation, visibilityDirection)
         && !mask[nextLocation.x][nextLocation.y][nextLocation.z]
-        && block.equals(getNullableBlock(nextLocation.x, nextLocation.y, nextLocation.z))) {
+        && block.equals(voxels.blocks[nextLocation.x][nextLocation.y][nextLocation.z])
+        && faceShade(voxels, nextLocation, visibilityDirection) == shade) {
       length += 1;
       nextLocation.addLocal(axisDirection);
     }
@@ -109,48 +379,209 @@ public class Chunk {
     return length;
   }
 
-  private boolean isVisibleFrom(Block block, Vec3i blockLocation, Vec3i direction) {
+  private boolean isVisibleFrom(Voxels voxels, Block block, Vec3i blockLocation, Vec3i direction) {
     int x = blockLocation.x + direction.x;
     int y = blockLocation.y + direction.y;
     int z = blockLocation.z + direction.z;
-    boolean isLocal = x >= 0 && y >= 0 && z >= 0 && x < size.x && y < size.y && z < size.z;
+    Vec3i voxelCount = voxels.size;
+    boolean isLocal =
+        x >= 0 && y >= 0 && z >= 0 && x < voxelCount.x && y < voxelCount.y && z < voxelCount.z;
     if (isLocal) {
-      Block otherBlock = getNullableBlock(x, y, z);
+      Block otherBlock = voxels.blocks[x][y][z];
       return otherBlock == null || (otherBlock.isTransparent() && !block.equals(otherBlock));
     } else {
+      // border faces of opaque blocks are always created, between chunks of different levels of
+      // detail they act as skirts that hide the cracks
       if (!block.isTransparent()) return true;
       if (block.type() == BlockType.WATER) return false;
+      if (voxels.scale > 1) return true;
 
-      Chunk otherChunk = chunkGrid.getChunk(location.add(direction));
+      Chunk otherChunk = getOrLoadNeighbor(Face.of(direction.x, direction.y, direction.z));
       Block otherBlock =
           otherChunk.blocks[(x + size.x) % size.x][(y + size.y) % size.y][(z + size.z) % size.z];
       return otherBlock == null || (otherBlock.isTransparent() && !block.equals(otherBlock));
     }
   }
 
-  private void initNode() {
+  // the top faces of water are merged across chunks by the WaterSurfaceBuilder
+  private static boolean isWaterSurface(Block block, Vec3i direction) {
+    return block.type() == BlockType.WATER && direction.y > 0;
+  }
+
+  private void initNode(Node node, int lod) {
+    Optional<MeshCache> meshCache = chunkGrid.getMeshCache();
+    // downsampled meshes don't depend on the neighbors
+    long contentHash = meshCache.isPresent() ? contentHash(lod == 0) : 0;
+    Map<Block, Mesh> blockToMesh =
+        meshCache
+            .flatMap(cache -> cache.read(location, lod, MESHER_VERSION, contentHash))
+            .orElse(null);
+    if (blockToMesh == null) {
+      blockToMesh =
+          createMeshes(lod == 0 ? new Voxels(blocks, size, 1, light) : downsample(1 << lod));
+      if (meshCache.isPresent()) {
+        meshCache.get().write(location, lod, MESHER_VERSION, contentHash, blockToMesh);
+      }
+    }
+
+    if (blockMaterial.usesVertexBlockTypes()) {
+      for (boolean isTransparent : new boolean[] {false, true}) {
+        Map<Block, Mesh> blockToMeshPart = new LinkedHashMap<>();
+        for (Map.Entry<Block, Mesh> entry : blockToMesh.entrySet()) {
+          if (entry.getKey().isTransparent() == isTransparent) {
+            blockToMeshPart.put(entry.getKey(), entry.getValue());
+          }
+        }
+        if (!blockToMeshPart.isEmpty()) {
+          node.attachChild(createGeometry(isTransparent, mergeMeshes(blockToMeshPart)));
+        }
+      }
+    } else {
+      for (Map.Entry<Block, Mesh> entry : blockToMesh.entrySet()) {
+        node.attachChild(createGeometry(entry.getKey(), entry.getValue()));
+      }
+    }
+  }
+
+  /**
+   * Merges the meshes of several blocks into one with the block type ordinals in TexCoord2.x.
+   * TexCoord2.y stays 0: the block colors, e.g. the temperature tints, aren't packed because the
+   * per block materials never apply them either, so both paths look the same.
+   */
+  private static Mesh mergeMeshes(Map<Block, Mesh> blockToMesh) {
+    int vertexCount = 0;
+    int indexCount = 0;
+    for (Mesh mesh : blockToMesh.values()) {
+      vertexCount += mesh.getVertexCount();
+      indexCount += mesh.getBuffer(VertexBuffer.Type.Index).getData().limit();
+    }
+
+    FloatBuffer positions = BufferUtils.createFloatBuffer(vertexCount * 3);
+    FloatBuffer textureCoordinates = BufferUtils.createFloatBuffer(vertexCount * 2);
+    FloatBuffer normals = BufferUtils.createFloatBuffer(vertexCount * 3);
+    FloatBuffer colors = BufferUtils.createFloatBuffer(vertexCount * 4);
+    FloatBuffer blockTypes = BufferUtils.createFloatBuffer(vertexCount * 2);
+    IntBuffer indexes = BufferUtils.createIntBuffer(indexCount);
+
+    int indexOffset = 0;
+    for (Map.Entry<Block, Mesh> entry : blockToMesh.entrySet()) {
+      Mesh mesh = entry.getValue();
+      positions.put(mesh.getFloatBuffer(VertexBuffer.Type.Position).duplicate().rewind());
+      textureCoordinates.put(mesh.getFloatBuffer(VertexBuffer.Type.TexCoord).duplicate().rewind());
+      normals.put(mesh.getFloatBuffer(VertexBuffer.Type.Normal).duplicate().rewind());
+      colors.put(mesh.getFloatBuffer(VertexBuffer.Type.Color).duplicate().rewind());
+      for (int i = 0; i < mesh.getVertexCount(); i++) {
+        blockTypes.put(entry.getKey().type().ordinal()).put(0);
+      }
+
+      IntBuffer meshIndexes =
+          ((IntBuffer) mesh.getBuffer(VertexBuffer.Type.Index).getData()).duplicate();
+      meshIndexes.rewind();
+      while (meshIndexes.hasRemaining()) indexes.put(meshIndexes.get() + indexOffset);
+      indexOffset += mesh.getVertexCount();
+    }
+
+    Mesh mesh = new Mesh();
+    mesh.setBuffer(VertexBuffer.Type.Position, 3, positions.flip());
+    mesh.setBuffer(VertexBuffer.Type.TexCoord, 2, textureCoordinates.flip());
+    mesh.setBuffer(VertexBuffer.Type.TexCoord2, 2, blockTypes.flip());
+    mesh.setBuffer(VertexBuffer.Type.Index, 3, indexes.flip());
+    mesh.setBuffer(VertexBuffer.Type.Normal, 3, normals.flip());
+    mesh.setBuffer(VertexBuffer.Type.Color, 4, colors.flip());
+    mesh.updateBound();
+    return mesh;
+  }
+
+  private void updateMeshMemoryUsage() {
+    int newMeshMemoryUsage = 0;
+    for (Node node : nodes) {
+      if (node == null) continue;
+      for (Spatial child : node.getChildren()) {
+        for (VertexBuffer vertexBuffer : ((Geometry) child).getMesh().getBufferList()) {
+          newMeshMemoryUsage +=
+              vertexBuffer.getData().capacity() * vertexBuffer.getFormat().getComponentSize();
+        }
+      }
+    }
+    meshMemoryUsage = newMeshMemoryUsage;
+  }
+
+  /**
+   * Merges scale^3 blocks into one voxel. A voxel is solid if at least scale^2 of its blocks are,
+   * so that thin layers like the water surface survive. Solid voxels get the most common block.
+   */
+  private Voxels downsample(int scale) {
+    Vec3i voxelCount = new Vec3i(size.x / scale, size.y / scale, size.z / scale);
+    Block[][][] voxels = new Block[voxelCount.x][voxelCount.y][voxelCount.z];
+    // blocks are shared instances, so there are only a few distinct ones per cell
+    Block[] candidates = new Block[scale * scale * scale];
+    int[] candidateCounts = new int[candidates.length];
+
+    for (int vx = 0; vx < voxelCount.x; vx++) {
+      for (int vy = 0; vy < voxelCount.y; vy++) {
+        for (int vz = 0; vz < voxelCount.z; vz++) {
+          int candidateCount = 0;
+          int solidCount = 0;
+          for (int x = vx * scale; x < (vx + 1) * scale; x++) {
+            for (int y = vy * scale; y < (vy + 1) * scale; y++) {
+              for (int z = vz * scale; z < (vz + 1) * scale; z++) {
+                Block block = blocks[x][y][z];
+                if (block == null) continue;
+                solidCount++;
+
+                int i = 0;
+                while (i < candidateCount && !candidates[i].equals(block)) i++;
+                if (i == candidateCount) {
+                  candidates[candidateCount] = block;
+                  candidateCounts[candidateCount++] = 0;
+                }
+                candidateCounts[i]++;
+              }
+            }
+          }
+
+          if (solidCount >= scale * scale) {
+            int dominant = 0;
+            for (int i = 1; i < candidateCount; i++) {
+              if (candidateCounts[i] > candidateCounts[dominant]) dominant = i;
+            }
+            voxels[vx][vy][vz] = candidates[dominant];
+          }
+        }
+      }
+    }
+
+    return new Voxels(voxels, voxelCount, scale, null);
+  }
+
+  private Map<Block, Mesh> createMeshes(Voxels voxels) {
     Map<Block, MeshData> blockToMeshData = new HashMap<>();
     Vec3i inMeshSize = new Vec3i();
     Vec3i blockLocation = new Vec3i();
+    Vec3i voxelCount = voxels.size;
 
     for (Map.Entry<Vec3i, Quaternion> entry : rotationForDirection.entrySet()) {
       Vec3i direction = entry.getKey();
       Quaternion rotation = entry.getValue();
 
-      boolean[][][] mask = new boolean[size.x][size.y][size.z];
+      boolean[][][] mask = new boolean[voxelCount.x][voxelCount.y][voxelCount.z];
 
-      for (int z = 0; z < size.z; z++) {
-        for (int y = 0; y < size.y; y++) {
-          for (int x = 0; x < size.x; x++) {
+      for (int z = 0; z < voxelCount.z; z++) {
+        for (int y = 0; y < voxelCount.y; y++) {
+          for (int x = 0; x < voxelCount.x; x++) {
             if (mask[x][y][z]) continue;
 
-            Block block = getNullableBlock(x, y, z);
+            Block block = voxels.blocks[x][y][z];
             blockLocation.set(x, y, z);
 
-            if (block != null && isVisibleFrom(block, blockLocation, direction)) {
-              greedyMeshSize(block, blockLocation, direction, mask, inMeshSize);
+            boolean isMeshed =
+                block != null
+                    && !isWaterSurface(block, direction)
+                    && isVisibleFrom(voxels, block, blockLocation, direction);
+            if (isMeshed) {
+              greedyMeshSize(voxels, block, blockLocation, direction, mask, inMeshSize);
               updateMeshData(
-                  blockToMeshData, rotation, block, direction, blockLocation, inMeshSize);
+                  voxels, blockToMeshData, rotation, block, direction, blockLocation, inMeshSize);
               x += inMeshSize.x - 1;
             }
           }
@@ -158,27 +589,94 @@ public class Chunk {
       }
     }
 
+    Map<Block, Mesh> blockToMesh = new HashMap<>();
     for (Map.Entry<Block, MeshData> entry : blockToMeshData.entrySet()) {
-      Spatial mesh =
+      blockToMesh.put(
+          entry.getKey(),
           createMesh(
-              entry.getKey(),
+              voxels.scale,
               entry.getValue().vertices,
               entry.getValue().textureCoordinates,
               entry.getValue().indexes,
-              entry.getValue().normals);
-      this.node.attachChild(mesh);
+              entry.getValue().normals,
+              entry.getValue().colors));
+    }
+    return blockToMesh;
+  }
+
+  /**
+   * Hashes everything the mesher reads: the own blocks and the neighbor blocks behind see-through
+   * blocks on the chunk border, see {@link #isVisibleFrom(Block, Vec3i, Vec3i)}.
+   */
+  private long contentHash(boolean includeNeighbors) {
+    long hash = 0xCBF29CE484222325L;
+    for (int x = 0; x < size.x; x++) {
+      for (int y = 0; y < size.y; y++) {
+        for (int z = 0; z < size.z; z++) {
+          Block block = blocks[x][y][z];
+          hash = (hash ^ stableHash(block)) * 0x100000001B3L;
+
+          boolean isBorder =
+              x == 0 || y == 0 || z == 0 || x == size.x - 1 || y == size.y - 1 || z == size.z - 1;
+          if (includeNeighbors
+              && isBorder
+              && block != null
+              && block.isTransparent()
+              && block.type() != BlockType.WATER) {
+            for (Face face : faces) {
+              int otherX = x + face.dx;
+              int otherY = y + face.dy;
+              int otherZ = z + face.dz;
+              boolean isLocal =
+                  otherX >= 0
+                      && otherY >= 0
+                      && otherZ >= 0
+                      && otherX < size.x
+                      && otherY < size.y
+                      && otherZ < size.z;
+              if (isLocal) continue;
+
+              Block[][][] otherBlocks = getOrLoadNeighbor(face).blocks;
+              Block otherBlock =
+                  otherBlocks[(otherX + size.x) % size.x][(otherY + size.y) % size.y][
+                      (otherZ + size.z) % size.z];
+              hash = (hash ^ stableHash(otherBlock)) * 0x100000001B3L;
+            }
+          }
+        }
+      }
     }
+    // the light depends on the neighbor blocks and the chunks above
+    ChunkLight light = this.light;
+    if (includeNeighbors && light != null) hash = (hash ^ light.contentHash()) * 0x100000001B3L;
+    return hash;
+  }
+
+  // unlike hashCode() this is the same across runs because it doesn't depend on enum identities
+  private static int stableHash(Block block) {
+    if (block == null) return 0;
+    int hash = block.type().ordinal() + 1;
+    hash = 31 * hash + Float.floatToIntBits(block.color().r);
+    hash = 31 * hash + Float.floatToIntBits(block.color().g);
+    hash = 31 * hash + Float.floatToIntBits(block.color().b);
+    hash = 31 * hash + Float.floatToIntBits(block.color().a);
+    return 31 * hash + (block.isTransparent() ? 1 : 0);
   }
 
   private void greedyMeshSize(
-      Block block, Vec3i blockLocation, Vec3i direction, boolean[][][] mask, Vec3i outMeshSize) {
-    int xLen = equalBlockCountInDirection(block, blockLocation, UNIT_X, direction, mask);
+      Voxels voxels,
+      Block block,
+      Vec3i blockLocation,
+      Vec3i direction,
+      boolean[][][] mask,
+      Vec3i outMeshSize) {
+    int xLen = equalBlockCountInDirection(voxels, block, blockLocation, UNIT_X, direction, mask);
 
     int zLen = Integer.MAX_VALUE;
     for (int offset = 0; offset < xLen; offset++) {
       int count =
           equalBlockCountInDirection(
-              block, blockLocation.add(offset, 0, 0), UNIT_Z, direction, mask);
+              voxels, block, blockLocation.add(offset, 0, 0), UNIT_Z, direction, mask);
       if (count < zLen) zLen = count;
     }
 
@@ -187,7 +685,7 @@ public class Chunk {
       for (int zOffset = 0; zOffset < zLen; zOffset++) {
         int count =
             equalBlockCountInDirection(
-                block, blockLocation.add(xOffset, 0, zOffset), UNIT_Y, direction, mask);
+                voxels, block, blockLocation.add(xOffset, 0, zOffset), UNIT_Y, direction, mask);
         if (count < yLen) yLen = count;
       }
     }
@@ -206,6 +704,7 @@ public class Chunk {
   }
 
   private void updateMeshData(
+      Voxels voxels,
       Map<Block, MeshData> blockToMeshData,
       Quaternion rotation,
       Block block,
@@ -247,6 +746,11 @@ public class Chunk {
     }
     Collections.addAll(meshData.textureCoordinates, coords);
 
+    for (int i = index; i < index + 4; i++) {
+      float color = vertexColor(voxels, direction, blockLocation, length, meshData.vertices.get(i));
+      Collections.addAll(meshData.colors, color, color, color, 1f);
+    }
+
     Collections.addAll(
         meshData.indexes, index + 2, index + 3, index + 1, index + 1, index + 0, index + 2);
 
@@ -266,6 +770,94 @@ public class Chunk {
         (float) direction.z);
   }
 
+  /**
+   * @return the light in front of the face and the ambient occlusion of its corners, 0 for unlit
+   *     voxels
+   */
+  private static int faceShade(Voxels voxels, Vec3i blockLocation, Vec3i direction) {
+    if (voxels.light == null) return 0;
+    int frontX = blockLocation.x + direction.x;
+    int frontY = blockLocation.y + direction.y;
+    int frontZ = blockLocation.z + direction.z;
+    Vec3i tangent1 = direction.x != 0 ? UNIT_Y : UNIT_X;
+    Vec3i tangent2 = direction.z != 0 ? UNIT_Y : UNIT_Z;
+
+    int shade = voxels.light.lightAt(frontX, frontY, frontZ);
+    for (int sign1 = -1; sign1 <= 1; sign1 += 2) {
+      for (int sign2 = -1; sign2 <= 1; sign2 += 2) {
+        int ambientOcclusion =
+            ambientOcclusion(
+                voxels.light, frontX, frontY, frontZ, tangent1, sign1, tangent2, sign2);
+        shade = shade << 2 | ambientOcclusion;
+      }
+    }
+    return shade;
+  }
+
+  // 0 to 3, 0 if the corner next to the front voxel is enclosed by opaque blocks
+  private static int ambientOcclusion(
+      ChunkLight light,
+      int frontX,
+      int frontY,
+      int frontZ,
+      Vec3i tangent1,
+      int sign1,
+      Vec3i tangent2,
+      int sign2) {
+    int side1X = frontX + tangent1.x * sign1;
+    int side1Y = frontY + tangent1.y * sign1;
+    int side1Z = frontZ + tangent1.z * sign1;
+    int side2X = frontX + tangent2.x * sign2;
+    int side2Y = frontY + tangent2.y * sign2;
+    int side2Z = frontZ + tangent2.z * sign2;
+    boolean isSide1Opaque = light.isOpaqueAt(side1X, side1Y, side1Z);
+    boolean isSide2Opaque = light.isOpaqueAt(side2X, side2Y, side2Z);
+    if (isSide1Opaque && isSide2Opaque) return 0;
+    boolean isCornerOpaque =
+        light.isOpaqueAt(
+            side1X + tangent2.x * sign2, side1Y + tangent2.y * sign2, side1Z + tangent2.z * sign2);
+    return 3 - (isSide1Opaque ? 1 : 0) - (isSide2Opaque ? 1 : 0) - (isCornerOpaque ? 1 : 0);
+  }
+
+  /**
+   * @param vertex corner of the face of size length at the block location, all faces in it have
+   *     the same {@link #faceShade(Voxels, Vec3i, Vec3i)}
+   * @return the brightness of the vertex
+   */
+  private static float vertexColor(
+      Voxels voxels, Vec3i direction, Vec3i blockLocation, Vec3i length, Vector3f vertex) {
+    if (voxels.light == null) return 1;
+
+    // the face at the corner of the merged face that the vertex belongs to
+    Vec3i tangent1 = direction.x != 0 ? UNIT_Y : UNIT_X;
+    Vec3i tangent2 = direction.z != 0 ? UNIT_Y : UNIT_Z;
+    int sign1 = vertexSign(blockLocation, length, tangent1, vertex);
+    int sign2 = vertexSign(blockLocation, length, tangent2, vertex);
+    int offset1 = sign1 > 0 ? dot(length, tangent1) - 1 : 0;
+    int offset2 = sign2 > 0 ? dot(length, tangent2) - 1 : 0;
+    int frontX = blockLocation.x + tangent1.x * offset1 + tangent2.x * offset2 + direction.x;
+    int frontY = blockLocation.y + tangent1.y * offset1 + tangent2.y * offset2 + direction.y;
+    int frontZ = blockLocation.z + tangent1.z * offset1 + tangent2.z * offset2 + direction.z;
+
+    int light = voxels.light.lightAt(frontX, frontY, frontZ);
+    int ambientOcclusion =
+        ambientOcclusion(voxels.light, frontX, frontY, frontZ, tangent1, sign1, tangent2, sign2);
+    float brightness = 0.1f + 0.9f * (float) Math.pow(0.8, ChunkLight.MAX_LIGHT - light);
+    return brightness * AMBIENT_OCCLUSION_FACTORS[ambientOcclusion];
+  }
+
+  // whether the vertex lies on the lower or upper side of the face along the tangent
+  private static int vertexSign(Vec3i blockLocation, Vec3i length, Vec3i tangent, Vector3f vertex) {
+    int start = dot(blockLocation, tangent);
+    int end = start + dot(length, tangent);
+    float coordinate = vertex.x * tangent.x + vertex.y * tangent.y + vertex.z * tangent.z;
+    return coordinate - start < end - coordinate ? -1 : 1;
+  }
+
+  private static int dot(Vec3i a, Vec3i b) {
+    return a.x * b.x + a.y * b.y + a.z * b.z;
+  }
+
   private Block getNullableBlock(int x, int y, int z) {
     return blocks[x][y][z];
   }
@@ -274,35 +866,54 @@ public class Chunk {
     return Optional.ofNullable(getNullableBlock(x, y, z));
   }
 
-  private void setBlock(int x, int y, int z, Block block) {
+  /**
+   * Marks the chunk as dirty so that the change is saved and updates the chunk light. Doesn't
+   * update an existing node, nor the light of the neighbor chunks.
+   */
+  public void setBlock(int x, int y, int z, Block block) {
     blocks[x][y][z] = block;
+    isDirty = true;
+    faceConnectivity = -1;
+    synchronized (this) {
+      if (light != null) light.setBlock(x, y, z, block);
+    }
   }
 
-  private Spatial createMesh(
-      Block block,
+  // positions and texture coordinates are in voxels, scale converts them to blocks
+  private Mesh createMesh(
+      int scale,
       List<Vector3f> vertices,
       List<Vector2f> textureCoordinates,
       List<Integer> indexes,
-      List<Float> normals) {
+      List<Float> normals,
+      List<Float> colors) {
     Mesh mesh = new Mesh();
 
-    Vector3f[] verticesArray = vertices.toArray(Vector3f[]::new);
-    Vector2f[] texCoordArray = textureCoordinates.toArray(Vector2f[]::new);
+    Vector3f[] verticesArray = vertices.stream().map(v -> v.mult(scale)).toArray(Vector3f[]::new);
+    Vector2f[] texCoordArray =
+        textureCoordinates.stream().map(v -> v.mult(scale)).toArray(Vector2f[]::new);
     int[] indexesArray = indexes.stream().mapToInt(x -> x).toArray();
     float[] normalsArray = new float[normals.size()];
     for (int i = 0; i < normals.size(); i++) {
       normalsArray[i] = normals.get(i);
     }
+    float[] colorsArray = new float[colors.size()];
+    for (int i = 0; i < colors.size(); i++) {
+      colorsArray[i] = colors.get(i);
+    }
     mesh.setBuffer(VertexBuffer.Type.Position, 3, BufferUtils.createFloatBuffer(verticesArray));
     mesh.setBuffer(VertexBuffer.Type.TexCoord, 2, BufferUtils.createFloatBuffer(texCoordArray));
     mesh.setBuffer(VertexBuffer.Type.Index, 3, BufferUtils.createIntBuffer(indexesArray));
     mesh.setBuffer(VertexBuffer.Type.Normal, 3, BufferUtils.createFloatBuffer(normalsArray));
+    mesh.setBuffer(VertexBuffer.Type.Color, 4, BufferUtils.createFloatBuffer(colorsArray));
     mesh.updateBound();
+    return mesh;
+  }
 
+  private Spatial createGeometry(Block block, Mesh mesh) {
     String name = MessageFormat.format("block={0} location={1} size={2}", block, location, size);
     Geometry geometry = new Geometry(name, mesh);
     geometry.setMaterial(blockMaterial.forBlock(block));
-    geometry.setShadowMode(RenderQueue.ShadowMode.CastAndReceive);
     if (block.isTransparent()) {
       geometry.setQueueBucket(RenderQueue.Bucket.Transparent);
     }
@@ -310,14 +921,36 @@ public class Chunk {
     return geometry;
   }
 
+  private Spatial createGeometry(boolean isTransparent, Mesh mesh) {
+    String name =
+        MessageFormat.format(
+            "blocks transparent={0} location={1} size={2}", isTransparent, location, size);
+    Geometry geometry = new Geometry(name, mesh);
+    geometry.setMaterial(blockMaterial.forBlocks(isTransparent));
+    if (isTransparent) {
+      geometry.setQueueBucket(RenderQueue.Bucket.Transparent);
+    }
+
+    return geometry;
+  }
+
+  // the blocks to mesh, either the chunk blocks or downsampled ones where one voxel covers
+  // scale^3 blocks. Only the chunk blocks are lit, downsampled voxels are fully bright
+  private record Voxels(Block[][][] blocks, Vec3i size, int scale, ChunkLight light) {}
+
   private record MeshData(
       List<Vector3f> vertices,
       List<Vector2f> textureCoordinates,
       List<Integer> indexes,
-      List<Float> normals) {
+      List<Float> normals,
+      List<Float> colors) {
     public static MeshData empty() {
       return new MeshData(
-          new ArrayList<>(), new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+          new ArrayList<>(),
+          new ArrayList<>(),
+          new ArrayList<>(),
+          new ArrayList<>(),
+          new ArrayList<>());
     }
   }
 }
@@ -34,7 +34,7 @@ public class ChunkBlockGenerator {
             case NORMAL -> blockType.color;
             case HOT -> blockType.color.clone().interpolateLocal(ColorRGBA.Red, 0.2f);
           };
-      blocks[temperature.ordinal()] = new Block(blockType, color, blockType.color.a < 1);
+      blocks[temperature.ordinal()] = new Block(blockType, color, blockType.isTransparent());
     }
     return blocks;
   }
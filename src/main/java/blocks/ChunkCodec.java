@@ -0,0 +1,321 @@
+package blocks;
+
+import com.jme3.math.ColorRGBA;
+import com.simsilica.mathd.Vec3i;
+import lombok.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Compact binary format for chunk blocks, used for persistence and suitable for network
+ * transport.
+ *
+ * <p>Layout: version byte, palette size byte, encoding byte, the palette of distinct blocks (type,
+ * color, transparency) and finally the voxels as palette indexes. Voxels are ordered by x, z and
+ * then y, so that terrain columns form long runs. The indexes are either run-length encoded or
+ * bit-packed, whichever is smaller for the chunk at hand. Palette index 0 is always empty space.
+ *
+ * <p>Delta encoded chunks only contain the voxels that differ from a baseline, usually the
+ * generated blocks of the chunk. The palette then only contains the differing blocks and the
+ * voxels are a list of index gaps (varints) and palette indexes.
+ */
+public class ChunkCodec {
+  private static final byte VERSION = 1;
+  private static final byte RUN_LENGTH_ENCODING = 0;
+  private static final byte BIT_PACKED_ENCODING = 1;
+  private static final byte DELTA_ENCODING = 2;
+
+  private static final int MAX_PALETTE_SIZE = 256;
+  static final int BLOCK_SIZE = 18;
+  private static final BlockType[] blockTypes = BlockType.values();
+
+  private final Vec3i chunkSize;
+
+  public ChunkCodec(@NonNull Vec3i chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  public ByteBuffer encode(@NonNull Block[][][] blocks) {
+    Map<Block, Integer> paletteIndexes = new HashMap<>();
+    paletteIndexes.put(null, 0);
+    byte[] indexes = new byte[chunkSize.x * chunkSize.y * chunkSize.z];
+
+    int i = 0;
+    int runCount = 0;
+    int runLengthSize = 0;
+    int runLength = 0;
+    Block previousBlock = null;
+    Integer previousIndex = 0;
+    for (int x = 0; x < chunkSize.x; x++) {
+      for (int z = 0; z < chunkSize.z; z++) {
+        for (int y = 0; y < chunkSize.y; y++) {
+          // skip the palette lookup inside runs
+          Integer index =
+              blocks[x][y][z] == previousBlock
+                  ? previousIndex
+                  : paletteIndexes.get(blocks[x][y][z]);
+          if (index == null) {
+            index = paletteIndexes.size();
+            if (index >= MAX_PALETTE_SIZE)
+              throw new IllegalArgumentException(
+                  "chunks must not contain more than " + MAX_PALETTE_SIZE + " distinct blocks");
+            paletteIndexes.put(blocks[x][y][z], index);
+          }
+          indexes[i] = (byte) (int) index;
+          previousBlock = blocks[x][y][z];
+          previousIndex = index;
+
+          if (i > 0 && indexes[i] != indexes[i - 1]) {
+            runCount++;
+            runLengthSize += 1 + varIntSize(runLength);
+            runLength = 0;
+          }
+          runLength++;
+          i++;
+        }
+      }
+    }
+    runCount++;
+    runLengthSize += 1 + varIntSize(runLength);
+
+    Block[] palette = new Block[paletteIndexes.size()];
+    paletteIndexes.forEach((block, index) -> palette[index] = block);
+
+    int bitsPerIndex = bitsPerIndex(palette.length);
+    int bitPackedSize = (indexes.length * bitsPerIndex + 7) / 8;
+    boolean useRunLengthEncoding = runLengthSize <= bitPackedSize;
+
+    ByteBuffer buffer =
+        ByteBuffer.allocate(
+            3
+                + (palette.length - 1) * BLOCK_SIZE
+                + (useRunLengthEncoding ? runLengthSize : bitPackedSize));
+    buffer.put(VERSION);
+    buffer.put((byte) (palette.length - 1));
+    buffer.put(useRunLengthEncoding ? RUN_LENGTH_ENCODING : BIT_PACKED_ENCODING);
+    for (int j = 1; j < palette.length; j++) putBlock(buffer, palette[j]);
+
+    if (useRunLengthEncoding) {
+      putRuns(buffer, indexes, runCount);
+    } else {
+      putBitPacked(buffer, indexes, bitsPerIndex);
+    }
+
+    return buffer.flip();
+  }
+
+  /**
+   * Encodes only the voxels that differ from the baseline, unless the differences are so dense
+   * that the full encoding is smaller.
+   */
+  public ByteBuffer encodeDelta(@NonNull Block[][][] blocks, @NonNull Block[][][] baseline) {
+    Map<Block, Integer> paletteIndexes = new HashMap<>();
+    paletteIndexes.put(null, 0);
+    int[] differingIndexes = new int[chunkSize.x * chunkSize.y * chunkSize.z];
+    int differenceCount = 0;
+    int deltaSize = 0;
+
+    int i = 0;
+    int previousDifferingIndex = -1;
+    for (int x = 0; x < chunkSize.x; x++) {
+      for (int z = 0; z < chunkSize.z; z++) {
+        for (int y = 0; y < chunkSize.y; y++) {
+          if (!Objects.equals(blocks[x][y][z], baseline[x][y][z])) {
+            if (!paletteIndexes.containsKey(blocks[x][y][z])) {
+              if (paletteIndexes.size() >= MAX_PALETTE_SIZE) return encode(blocks);
+              paletteIndexes.put(blocks[x][y][z], paletteIndexes.size());
+            }
+            differingIndexes[differenceCount++] = i;
+            deltaSize += varIntSize(i - previousDifferingIndex) + 1;
+            previousDifferingIndex = i;
+          }
+          i++;
+        }
+      }
+    }
+
+    deltaSize += 3 + (paletteIndexes.size() - 1) * BLOCK_SIZE + varIntSize(differenceCount);
+    ByteBuffer fullBuffer = encode(blocks);
+    if (deltaSize >= fullBuffer.remaining()) return fullBuffer;
+
+    Block[] palette = new Block[paletteIndexes.size()];
+    paletteIndexes.forEach((block, index) -> palette[index] = block);
+
+    ByteBuffer buffer = ByteBuffer.allocate(deltaSize);
+    buffer.put(VERSION);
+    buffer.put((byte) (palette.length - 1));
+    buffer.put(DELTA_ENCODING);
+    for (int j = 1; j < palette.length; j++) putBlock(buffer, palette[j]);
+
+    putVarInt(buffer, differenceCount);
+    previousDifferingIndex = -1;
+    for (int j = 0; j < differenceCount; j++) {
+      int index = differingIndexes[j];
+      int x = index / (chunkSize.z * chunkSize.y);
+      int z = index / chunkSize.y % chunkSize.z;
+      int y = index % chunkSize.y;
+      putVarInt(buffer, index - previousDifferingIndex);
+      buffer.put((byte) (int) paletteIndexes.get(blocks[x][y][z]));
+      previousDifferingIndex = index;
+    }
+
+    return buffer.flip();
+  }
+
+  /** Decodes chunks that are not delta encoded. */
+  public Block[][][] decode(@NonNull ByteBuffer buffer) {
+    return decode(
+        buffer,
+        () -> {
+          throw new IllegalArgumentException("delta encoded chunks require a baseline");
+        });
+  }
+
+  /** @param createBaseline only called for delta encoded chunks */
+  public Block[][][] decode(
+      @NonNull ByteBuffer buffer, @NonNull Supplier<Block[][][]> createBaseline) {
+    byte version = buffer.get();
+    if (version != VERSION)
+      throw new IllegalArgumentException("unsupported chunk format version " + version);
+
+    Block[] palette = new Block[(buffer.get() & 0xFF) + 1];
+    byte encoding = buffer.get();
+    for (int i = 1; i < palette.length; i++) palette[i] = getBlock(buffer);
+
+    if (encoding == DELTA_ENCODING) return getDelta(buffer, palette, createBaseline.get());
+
+    byte[] indexes = new byte[chunkSize.x * chunkSize.y * chunkSize.z];
+    switch (encoding) {
+      case RUN_LENGTH_ENCODING -> getRuns(buffer, indexes);
+      case BIT_PACKED_ENCODING -> getBitPacked(buffer, indexes, bitsPerIndex(palette.length));
+      default -> throw new IllegalArgumentException("unsupported chunk encoding " + encoding);
+    }
+
+    Block[][][] blocks = new Block[chunkSize.x][chunkSize.y][chunkSize.z];
+    int i = 0;
+    for (int x = 0; x < chunkSize.x; x++) {
+      for (int z = 0; z < chunkSize.z; z++) {
+        for (int y = 0; y < chunkSize.y; y++) {
+          blocks[x][y][z] = palette[indexes[i++] & 0xFF];
+        }
+      }
+    }
+    return blocks;
+  }
+
+  /** Writes a non-null block in {@link #BLOCK_SIZE} bytes. */
+  static void putBlock(ByteBuffer buffer, Block block) {
+    buffer.put((byte) block.type().ordinal());
+    buffer.putFloat(block.color().r);
+    buffer.putFloat(block.color().g);
+    buffer.putFloat(block.color().b);
+    buffer.putFloat(block.color().a);
+    buffer.put((byte) (block.isTransparent() ? 1 : 0));
+  }
+
+  static Block getBlock(ByteBuffer buffer) {
+    BlockType type = blockTypes[buffer.get()];
+    ColorRGBA color =
+        new ColorRGBA(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+    return new Block(type, color, buffer.get() != 0);
+  }
+
+  private static int bitsPerIndex(int paletteSize) {
+    return 32 - Integer.numberOfLeadingZeros(paletteSize - 1);
+  }
+
+  private Block[][][] getDelta(ByteBuffer buffer, Block[] palette, Block[][][] blocks) {
+    int voxelCount = chunkSize.x * chunkSize.y * chunkSize.z;
+    int differenceCount = getVarInt(buffer);
+    int index = -1;
+    for (int i = 0; i < differenceCount; i++) {
+      index += getVarInt(buffer);
+      if (index >= voxelCount) throw new IllegalArgumentException("delta exceeds the chunk size");
+      int x = index / (chunkSize.z * chunkSize.y);
+      int z = index / chunkSize.y % chunkSize.z;
+      int y = index % chunkSize.y;
+      blocks[x][y][z] = palette[buffer.get() & 0xFF];
+    }
+    return blocks;
+  }
+
+  private static void putRuns(ByteBuffer buffer, byte[] indexes, int runCount) {
+    int start = 0;
+    for (int run = 0; run < runCount; run++) {
+      int end = start + 1;
+      while (end < indexes.length && indexes[end] == indexes[start]) end++;
+      buffer.put(indexes[start]);
+      putVarInt(buffer, end - start);
+      start = end;
+    }
+  }
+
+  private static void getRuns(ByteBuffer buffer, byte[] indexes) {
+    int i = 0;
+    while (i < indexes.length) {
+      byte index = buffer.get();
+      int runLength = getVarInt(buffer);
+      if (i + runLength > indexes.length)
+        throw new IllegalArgumentException("runs exceed the chunk size");
+      for (int end = i + runLength; i < end; i++) indexes[i] = index;
+    }
+  }
+
+  private static void putBitPacked(ByteBuffer buffer, byte[] indexes, int bitsPerIndex) {
+    long bits = 0;
+    int bitCount = 0;
+    for (byte index : indexes) {
+      bits |= (long) (index & 0xFF) << bitCount;
+      bitCount += bitsPerIndex;
+      while (bitCount >= 8) {
+        buffer.put((byte) bits);
+        bits >>>= 8;
+        bitCount -= 8;
+      }
+    }
+    if (bitCount > 0) buffer.put((byte) bits);
+  }
+
+  private static void getBitPacked(ByteBuffer buffer, byte[] indexes, int bitsPerIndex) {
+    int mask = (1 << bitsPerIndex) - 1;
+    long bits = 0;
+    int bitCount = 0;
+    for (int i = 0; i < indexes.length; i++) {
+      while (bitCount < bitsPerIndex) {
+        bits |= (long) (buffer.get() & 0xFF) << bitCount;
+        bitCount += 8;
+      }
+      indexes[i] = (byte) (bits & mask);
+      bits >>>= bitsPerIndex;
+      bitCount -= bitsPerIndex;
+    }
+  }
+
+  private static int varIntSize(int value) {
+    int size = 1;
+    while ((value >>>= 7) != 0) size++;
+    return size;
+  }
+
+  private static void putVarInt(ByteBuffer buffer, int value) {
+    while ((value & ~0x7F) != 0) {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  private static int getVarInt(ByteBuffer buffer) {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = buffer.get();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new IllegalArgumentException("malformed run length");
+  }
+}
@@ -2,16 +2,23 @@ package blocks;
 
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.jme3.math.Vector3f;
+import com.jme3.renderer.queue.RenderQueue;
 import com.jme3.scene.Node;
 import com.jme3.scene.Spatial;
 import com.simsilica.mathd.Vec3i;
 import lombok.Getter;
 import lombok.NonNull;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 @Slf4j
@@ -20,7 +27,8 @@ public class ChunkGrid {
   // x and y sizes are 2 bigger than required - the first and last rows/cols only cache
   // pre-calculated chunk blocks that have been requested using getChunkBlocks().
   // those cells are not represented by any nodes
-  private final Vec3i gridSize;
+  // horizontal size can change at runtime, see resizeHorizontally()
+  private Vec3i gridSize;
   private final Vec3i chunkSize;
   private final ExecutorService chunkMeshGenerationExecutorService;
   private final ExecutorService chunkBlockGenerationExecutorService;
@@ -29,14 +37,83 @@ public class ChunkGrid {
 
   private int gridOffsetX;
   private int gridOffsetZ;
-  // in the lower left corner of the grid, relative to the grid offsets
-  private final Vec3i firstGridChunkLocation;
+  // chunk location in the lower left corner of the grid, relative to the grid offsets
+  @Getter private int firstGridChunkX;
+  @Getter private int firstGridChunkZ;
+  private final Vector3f centerWorldLocation;
+  // contains the chunk nodes and the region batches
   @Getter private final Node node;
+  // root of a quadtree over the horizontal grid slots whose leaves hold the chunk nodes, so that
+  // off-screen areas are culled with a single bounds test. It's built over the slots instead of
+  // the chunk locations so that it stays the same when the grid wraps around, only the bounds of
+  // the subtrees across the wrap seam span the whole grid.
+  private final Node chunkNodes;
+  private static final int QUADTREE_LEAF_SIZE = 2;
+  // quadtree leaf and child index of the chunk node for each node index
+  private Node[] slotParents;
+  private int[] slotChildIndexes;
 
-  private final ConcurrentLinkedQueue<NodeIndexWithChunk> updateList =
-      new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<ChunkWithLod> updateList = new ConcurrentLinkedQueue<>();
 
+  // horizontal chunk distance to the center chunk from which on each further level of detail is
+  // used, see Chunk.getNode(int)
+  private static final int[] LOD_START_DISTANCES = {10, 16, 24};
+  private final int maxLod;
+  // horizontal chunk distances to the center chunk up to which chunks cast and receive shadows,
+  // further chunks don't take part in the shadow pass, see setShadowDistances()
+  private int shadowCastDistance = Integer.MAX_VALUE;
+  private int shadowReceiveDistance = Integer.MAX_VALUE;
+  // level of detail that has been scheduled for each node index
+  private byte[] slotLods;
+  // chunk whose node is attached at each node index, null for empty nodes
+  private Chunk[] slotChunks;
+
+  // optional, null if chunk meshes are not merged into region batches
+  private RegionBatcher regionBatcher;
+  // region of the chunk at each node index, null without region batcher or for empty nodes
+  private RegionBatcher.Region[] slotRegions;
+
+  // merges the water surfaces of the attached chunks, which don't mesh them
+  private static final int WATER_SURFACE_REGION_SIZE = 8;
+  private final WaterSurfaceBuilder waterSurfaceBuilder;
+
+  private final List<ChunkListener> chunkListeners = new ArrayList<>();
+
+  // state of the visibility search, indexed like the node index but relative to the first grid
+  // chunk instead of the grid offsets
+  private static final Face[] faces = Face.values();
+  private int visibilitySearchId = 0;
+  private int[] visibilitySearchIds;
+  private byte[] travelledFaces;
+  private byte[] entryFaces;
+  private int[] visibilityQueue;
+  @Getter private int hiddenChunkCount = 0;
+
+  // chunk locations covered by the grid, published for the chunk generation tasks so that they can
+  // skip chunks that have left the grid before they were generated
+  private volatile GridBounds gridBounds;
+  private final AtomicInteger pendingChunkCount = new AtomicInteger();
+
+  // weighted by chunk memory usage, evicted chunks drop into the compressed tier. Chunks inside the
+  // grid bounds weigh nothing so that attached chunks are never evicted, their memory is taken from
+  // the budget instead, see updateChunkCacheMaximum()
   LoadingCache<Vec3i, Chunk> cachedChunks;
+  @Getter private final long chunkCacheMaximumBytes;
+  private static final long CHUNK_CACHE_MAXIMUM_UPDATE_INTERVAL_MILLIS = 1000;
+  private long chunkCacheMaximumUpdatedAt = 0;
+  private final CompressedChunkCache compressedChunks;
+  // allocation-free lookups of the chunks in cachedChunks for the hot read paths
+  private final ChunkIndex chunkIndex = new ChunkIndex();
+
+  // checked before generating chunk blocks, dirty chunks are written to it by the chunk saver
+  private final RegionFileStore worldStore;
+  private final PersistenceMode persistenceMode;
+  private final ChunkCodec chunkCodec;
+  @Getter private final ChunkSaver chunkSaver;
+  // optional, null if finished meshes are not cached
+  private final MeshCache meshCache;
+
+  @Setter private ChunkPrefetcher chunkPrefetcher;
 
   public ChunkGrid(
       @NonNull Vec3i gridSize,
@@ -44,49 +121,279 @@ public class ChunkGrid {
       @NonNull Vector3f centerWorldLocation,
       ExecutorService chunkBlockGenerationExecutorService,
       ExecutorService chunkMeshGenerationExecutorService,
+      @NonNull ExecutorService waterSurfaceExecutorService,
       @NonNull BlockMaterial blockMaterial,
-      @NonNull Function<Vec3i, Block[][][]> createChunkBlocks) {
+      @NonNull Function<Vec3i, Block[][][]> createChunkBlocks,
+      long chunkCacheMaximumBytes,
+      long compressedChunkCacheMaximumBytes,
+      @NonNull RegionFileStore worldStore,
+      @NonNull PersistenceMode persistenceMode,
+      MeshCache meshCache) {
     this.gridSize = gridSize;
     this.chunkSize = chunkSize;
+    this.maxLod = Chunk.maxLod(chunkSize);
     this.createChunkBlocks = createChunkBlocks;
     this.chunkBlockGenerationExecutorService = chunkBlockGenerationExecutorService;
     this.chunkMeshGenerationExecutorService = chunkMeshGenerationExecutorService;
     this.blockMaterial = blockMaterial;
+    this.worldStore = worldStore;
+    this.chunkCodec = new ChunkCodec(chunkSize);
+    this.persistenceMode = persistenceMode;
+    this.chunkSaver =
+        new ChunkSaver(worldStore, chunkCodec, persistenceMode, this::generateChunkBlocks);
+    this.meshCache = meshCache;
+    this.chunkCacheMaximumBytes = chunkCacheMaximumBytes;
 
-    firstGridChunkLocation = calculateFirstGridChunkLocation(centerWorldLocation);
+    this.centerWorldLocation = centerWorldLocation.clone();
+    firstGridChunkX = calculateFirstGridChunkX(centerWorldLocation);
+    firstGridChunkZ = calculateFirstGridChunkZ(centerWorldLocation);
+    publishGridBounds();
     node = new Node();
+    chunkNodes = new Node("chunks");
+    node.attachChild(chunkNodes);
+    waterSurfaceBuilder =
+        new WaterSurfaceBuilder(
+            WATER_SURFACE_REGION_SIZE,
+            chunkSize,
+            gridSize.y,
+            blockMaterial,
+            waterSurfaceExecutorService);
+    node.attachChild(waterSurfaceBuilder.getNode());
+
+    compressedChunks = new CompressedChunkCache(chunkCodec, compressedChunkCacheMaximumBytes);
 
-    int chunkCacheSize = (gridSize.x + 2) * this.gridSize.y * (this.gridSize.z + 2);
     cachedChunks =
         Caffeine.newBuilder()
-            .maximumSize(chunkCacheSize)
-            .initialCapacity(chunkCacheSize)
+            .maximumWeight(chunkCacheMaximumBytes)
+            .weigher(
+                (Vec3i chunkLocation, Chunk chunk) ->
+                    gridBounds.contains(chunkLocation.x, chunkLocation.z)
+                        ? 0
+                        : chunk.getMemoryUsage())
+            .initialCapacity((gridSize.x + 2) * gridSize.y * (gridSize.z + 2))
             .executor(chunkBlockGenerationExecutorService)
-            .build(
-                chunkLocation ->
-                    new Chunk(
-                        chunkLocation,
-                        chunkSize,
-                        generateChunkBlocks(chunkLocation),
-                        blockMaterial,
-                        this));
+            .evictionListener(
+                (Vec3i chunkLocation, Chunk chunk, RemovalCause cause) -> {
+                  if (chunkLocation != null && chunk != null) {
+                    chunkIndex.remove(chunk);
+                    chunk.unlinkAll();
+                    if (chunk.isDirty()) chunkSaver.save(chunkLocation, chunk.getBlocks());
+                    compressedChunks.put(chunkLocation, chunk.getBlocks());
+                  }
+                })
+            .build(this::loadChunk);
 
-    initGrid();
+    allocateSlots();
+    scheduleInitialChunkGenerations();
   }
 
-  private void initGrid() {
-    gridOffsetX = 0;
-    gridOffsetZ = 0;
+  /**
+   * Merges the meshes of neighboring chunks to reduce draw calls, see {@link RegionBatcher}. Must
+   * be called from the render thread.
+   */
+  public void setRegionBatcher(@NonNull RegionBatcher regionBatcher) {
+    if (this.regionBatcher != null)
+      throw new IllegalStateException("region batcher has already been set");
+    this.regionBatcher = regionBatcher;
+    node.attachChild(regionBatcher.getNode());
+
+    for (int nodeIndex = 0; nodeIndex < slotChunks.length; nodeIndex++) {
+      Chunk chunk = slotChunks[nodeIndex];
+      if (chunk != null) {
+        slotRegions[nodeIndex] =
+            regionBatcher.chunkAttached(chunk, (Node) getSlotNode(nodeIndex));
+      }
+    }
+  }
+
+  /** Must be called from the render thread. */
+  public void addChunkListener(@NonNull ChunkListener chunkListener) {
+    chunkListeners.add(chunkListener);
+  }
+
+  private void notifyChunkDetached(Chunk chunk) {
+    for (ChunkListener chunkListener : chunkListeners) chunkListener.chunkDetached(chunk);
+  }
+
+  // evicted dirty chunks are saved before they drop into the compressed tier, so only newly
+  // generated chunks start out dirty - and only if they are stored in full
+  private Chunk loadChunk(Vec3i chunkLocation) {
+    Optional<Block[][][]> knownBlocks =
+        compressedChunks
+            .take(chunkLocation)
+            .or(() -> chunkSaver.getPending(chunkLocation))
+            .or(() -> readStoredChunkBlocks(chunkLocation));
+    Chunk chunk =
+        new Chunk(
+            chunkLocation,
+            chunkSize,
+            knownBlocks.orElseGet(() -> generateChunkBlocks(chunkLocation)),
+            blockMaterial,
+            this);
+    chunk.setDirty(knownBlocks.isEmpty() && persistenceMode == PersistenceMode.FULL);
+    chunkIndex.put(chunk);
+    linkNeighbors(chunk);
+    return chunk;
+  }
+
+  // the chunk is put into the index before looking up its neighbors, so of two neighbors loading
+  // concurrently at least one sees the other and creates both links
+  private void linkNeighbors(Chunk chunk) {
+    Vec3i location = chunk.getLocation();
+    for (Face face : Face.values()) {
+      Chunk neighbor =
+          chunkIndex.get(
+              ChunkIndex.key(location.x + face.dx, location.y + face.dy, location.z + face.dz));
+      if (neighbor != null) {
+        chunk.link(face, neighbor);
+        neighbor.link(face.opposite(), chunk);
+      }
+    }
+  }
+
+  Optional<MeshCache> getMeshCache() {
+    return Optional.ofNullable(meshCache);
+  }
+
+  public Vec3i getGridSize() {
+    return gridSize.clone();
+  }
+
+  public Vec3i getChunkSize() {
+    return chunkSize.clone();
+  }
+
+  /** @return number of scheduled chunk generations that haven't been attached to the grid yet */
+  public int getPendingChunkCount() {
+    return pendingChunkCount.get() + updateList.size();
+  }
+
+  /**
+   * @return memory usage of the chunks attached to the grid, see {@link Chunk#getMemoryUsage()},
+   *     including the region batches that duplicate their meshes. Must be called from the render
+   *     thread.
+   */
+  public long getResidentChunkBytes() {
+    long bytes = regionBatcher != null ? regionBatcher.getBatchMemoryUsage() : 0;
+    for (Chunk chunk : slotChunks) {
+      if (chunk != null) bytes += chunk.getMemoryUsage();
+    }
+    return bytes;
+  }
+
+  /**
+   * Changes the horizontal grid size while keeping the grid centered around the last center
+   * location. The slots that are inside both the old and the new grid keep their chunks, only the
+   * chunks of the added outer rows and columns are generated and those of the removed ones are
+   * detached. Must be called from the render thread.
+   */
+  public void resizeHorizontally(int width, int depth) {
+    if (width < 1 || depth < 1)
+      throw new IllegalArgumentException(
+          "width and depth must be > 0 but got " + width + ", " + depth);
+    if (width == gridSize.x && depth == gridSize.z) return;
+
+    Vec3i previousGridSize = gridSize;
+    GridBounds previousGridBounds = gridBounds;
+    int previousFirstGridChunkX = firstGridChunkX;
+    int previousFirstGridChunkZ = firstGridChunkZ;
+    int previousGridOffsetX = gridOffsetX;
+    int previousGridOffsetZ = gridOffsetZ;
+    byte[] previousSlotLods = slotLods;
+    Chunk[] previousSlotChunks = slotChunks;
+    RegionBatcher.Region[] previousSlotRegions = slotRegions;
+    Spatial[] previousSlotNodes = new Spatial[previousSlotChunks.length];
+    for (int i = 0; i < previousSlotNodes.length; i++) previousSlotNodes[i] = getSlotNode(i);
+
+    gridSize = new Vec3i(width, gridSize.y, depth);
+    firstGridChunkX = calculateFirstGridChunkX(centerWorldLocation);
+    firstGridChunkZ = calculateFirstGridChunkZ(centerWorldLocation);
+    publishGridBounds();
+    allocateSlots();
+
+    // move the slots that are still inside the grid, pending generations find them by location
+    for (int x = 0; x < previousGridSize.x; x++) {
+      int chunkX = previousFirstGridChunkX + x;
+      int previousGridX = (previousGridOffsetX + x) % previousGridSize.x;
+      for (int z = 0; z < previousGridSize.z; z++) {
+        int chunkZ = previousFirstGridChunkZ + z;
+        int previousGridZ = (previousGridOffsetZ + z) % previousGridSize.z;
+        for (int y = 0; y < gridSize.y; y++) {
+          int previousNodeIndex =
+              (previousGridX * gridSize.y + y) * previousGridSize.z + previousGridZ;
+          Chunk chunk = previousSlotChunks[previousNodeIndex];
+          if (gridBounds.contains(chunkX, chunkZ)) {
+            int nodeIndex =
+                nodeIndexForRelativeLocation(chunkX - firstGridChunkX, y, chunkZ - firstGridChunkZ);
+            slotLods[nodeIndex] = previousSlotLods[previousNodeIndex];
+            slotChunks[nodeIndex] = chunk;
+            slotRegions[nodeIndex] = previousSlotRegions[previousNodeIndex];
+            setSlotNode(nodeIndex, previousSlotNodes[previousNodeIndex]);
+          } else if (chunk != null) {
+            detachChunk(chunk, previousSlotRegions[previousNodeIndex]);
+          }
+        }
+      }
+    }
 
     for (int x = 0; x < gridSize.x; x++) {
-      for (int y = 0; y < gridSize.y; y++) {
-        for (int z = 0; z < gridSize.z; z++) {
-          // scheduleChunkGeneration() requires a filled node list
-          node.attachChild(new Node("empty"));
+      int chunkX = firstGridChunkX + x;
+      for (int z = 0; z < gridSize.z; z++) {
+        int chunkZ = firstGridChunkZ + z;
+        if (previousGridBounds.contains(chunkX, chunkZ)) continue;
+
+        for (int y = 0; y < gridSize.y; y++) {
+          scheduleChunkGeneration(new Vec3i(x, y, z), new Vec3i(chunkX, y, chunkZ));
         }
       }
     }
+  }
+
+  private void detachChunk(Chunk chunk, RegionBatcher.Region region) {
+    waterSurfaceBuilder.chunkDetached(chunk);
+    if (regionBatcher != null) regionBatcher.chunkDetached(region, chunk);
+    notifyChunkDetached(chunk);
+    reweigh(chunk);
+  }
+
+  // the weight is only calculated on insertion and replacement
+  private void reweigh(Chunk chunk) {
+    cachedChunks.asMap().replace(chunk.getLocation(), chunk, chunk);
+  }
+
+  // the attached chunks can't be evicted, so only the rest of the budget is left for the others
+  private void updateChunkCacheMaximum(long now) {
+    if (now < chunkCacheMaximumUpdatedAt + CHUNK_CACHE_MAXIMUM_UPDATE_INTERVAL_MILLIS) return;
+    chunkCacheMaximumUpdatedAt = now;
+    long maximum = Math.max(0, chunkCacheMaximumBytes - getResidentChunkBytes());
+    cachedChunks.policy().eviction().ifPresent(eviction -> eviction.setMaximum(maximum));
+  }
+
+  private void publishGridBounds() {
+    gridBounds = new GridBounds(firstGridChunkX, firstGridChunkZ, gridSize.x, gridSize.z);
+  }
+
+  // resets the grid offsets and fills the slots with empty nodes
+  private void allocateSlots() {
+    gridOffsetX = 0;
+    gridOffsetZ = 0;
+    int slotCount = gridSize.x * gridSize.y * gridSize.z;
+    slotLods = new byte[slotCount];
+    slotChunks = new Chunk[slotCount];
+    slotRegions = new RegionBatcher.Region[slotCount];
+    visibilitySearchIds = new int[slotCount];
+    travelledFaces = new byte[slotCount];
+    entryFaces = new byte[slotCount];
+    visibilityQueue = new int[slotCount];
+    slotParents = new Node[slotCount];
+    slotChildIndexes = new int[slotCount];
 
+    chunkNodes.detachAllChildren();
+    // scheduleChunkGeneration() requires a filled node list
+    buildQuadtree(chunkNodes, 0, 0, gridSize.x, gridSize.z);
+  }
+
+  private void scheduleInitialChunkGenerations() {
     // build initial grid in spiral order around center
     int x = 0;
     int z = 0;
@@ -103,7 +410,7 @@ public class ChunkGrid {
       while (2 * x * d < m && i < loopLimit) {
         for (int y = 0; y < gridSize.y; y++) {
           Vec3i gridLocation = new Vec3i(x + spiralXOffset, y, z + spiralZOffset);
-          Vec3i chunkLocation = firstGridChunkLocation.add(x + spiralXOffset, y, z + spiralZOffset);
+          Vec3i chunkLocation = new Vec3i(firstGridChunkX + x + spiralXOffset, y, firstGridChunkZ + z + spiralZOffset);
           scheduleChunkGeneration(gridLocation, chunkLocation);
         }
 
@@ -114,7 +421,7 @@ public class ChunkGrid {
       while (2 * z * d < m && i < loopLimit) {
         for (int y = 0; y < gridSize.y; y++) {
           Vec3i gridLocation = new Vec3i(x + spiralXOffset, y, z + spiralZOffset);
-          Vec3i chunkLocation = firstGridChunkLocation.add(x + spiralXOffset, y, z + spiralZOffset);
+          Vec3i chunkLocation = new Vec3i(firstGridChunkX + x + spiralXOffset, y, firstGridChunkZ + z + spiralZOffset);
           scheduleChunkGeneration(gridLocation, chunkLocation);
         }
 
@@ -129,31 +436,99 @@ public class ChunkGrid {
     if (log.isDebugEnabled()) log.debug("initially\n" + debugView());
   }
 
-  private Vec3i calculateFirstGridChunkLocation(Vector3f camLocation) {
-    // use floor() because both (int)-0.9f and (int)+0.9f result in 0, effectively spanning 2 ints.
-    // floor() intermediate result to have fixed center that's not affected by the float subtrahend
-    return new Vec3i(
-        (int) Math.floor(Math.floor(camLocation.x / chunkSize.x) - gridSize.x / 2f),
-        0,
-        (int) Math.floor(Math.floor(camLocation.z / chunkSize.z) - gridSize.z / 2f));
+  // use floor() because both (int)-0.9f and (int)+0.9f result in 0, effectively spanning 2 ints.
+  // floor() intermediate result to have fixed center that's not affected by the float subtrahend
+  private int calculateFirstGridChunkX(Vector3f camLocation) {
+    return (int) Math.floor(Math.floor(camLocation.x / chunkSize.x) - gridSize.x / 2f);
+  }
+
+  private int calculateFirstGridChunkZ(Vector3f camLocation) {
+    return (int) Math.floor(Math.floor(camLocation.z / chunkSize.z) - gridSize.z / 2f);
   }
 
   public void centerAroundWorldLocation(Vector3f newCenterWorldLocation) {
-    Vec3i newFirstChunkLocation = calculateFirstGridChunkLocation(newCenterWorldLocation);
+    centerWorldLocation.set(newCenterWorldLocation);
+    int newFirstChunkX = calculateFirstGridChunkX(newCenterWorldLocation);
+    int newFirstChunkZ = calculateFirstGridChunkZ(newCenterWorldLocation);
+    boolean hasMoved = newFirstChunkX != firstGridChunkX || newFirstChunkZ != firstGridChunkZ;
 
-    while (!newFirstChunkLocation.equals(firstGridChunkLocation)) {
+    while (newFirstChunkX != firstGridChunkX || newFirstChunkZ != firstGridChunkZ) {
       if (log.isDebugEnabled()) log.debug("before\n" + debugView());
 
-      if (newFirstChunkLocation.x != firstGridChunkLocation.x) {
-        stepTowardsNewCenterGridLocationX(newFirstChunkLocation.x > firstGridChunkLocation.x);
+      if (newFirstChunkX != firstGridChunkX) {
+        stepTowardsNewCenterGridLocationX(newFirstChunkX > firstGridChunkX);
       }
 
-      if (newFirstChunkLocation.z != firstGridChunkLocation.z) {
-        stepTowardsNewCenterGridLocationZ(newFirstChunkLocation.z > firstGridChunkLocation.z);
+      if (newFirstChunkZ != firstGridChunkZ) {
+        stepTowardsNewCenterGridLocationZ(newFirstChunkZ > firstGridChunkZ);
       }
 
       if (log.isDebugEnabled()) log.debug("after\n" + debugView());
     }
+
+    if (hasMoved) updateLods();
+  }
+
+  // the rings around the center have moved with it
+  private void updateLods() {
+    for (int x = 0; x < gridSize.x; x++) {
+      int gridX = gridIndexX(gridOffsetX + x);
+      for (int z = 0; z < gridSize.z; z++) {
+        int gridZ = gridIndexZ(gridOffsetZ + z);
+        int lod = lodForChunk(firstGridChunkX + x, firstGridChunkZ + z);
+        for (int y = 0; y < gridSize.y; y++) {
+          Vec3i gridLocation = new Vec3i(gridX, y, gridZ);
+          if (slotLods[nodeIndexForGridLocation(gridLocation)] != lod) {
+            scheduleChunkGeneration(
+                gridLocation, new Vec3i(firstGridChunkX + x, y, firstGridChunkZ + z));
+          }
+        }
+      }
+    }
+  }
+
+  private int distanceToCenterChunk(int chunkX, int chunkZ) {
+    int centerChunkX = (int) Math.floor(centerWorldLocation.x / chunkSize.x);
+    int centerChunkZ = (int) Math.floor(centerWorldLocation.z / chunkSize.z);
+    return Math.max(Math.abs(chunkX - centerChunkX), Math.abs(chunkZ - centerChunkZ));
+  }
+
+  private int lodForChunk(int chunkX, int chunkZ) {
+    int distance = distanceToCenterChunk(chunkX, chunkZ);
+
+    int lod = 0;
+    while (lod < maxLod
+        && lod < LOD_START_DISTANCES.length
+        && distance >= LOD_START_DISTANCES[lod]) {
+      lod++;
+    }
+    return lod;
+  }
+
+  /**
+   * Limits the shadow pass to the chunks around the center. Chunks up to the cast distance cast and
+   * receive shadows, chunks up to the receive distance only receive them and further chunks are
+   * left out.
+   *
+   * @param castDistance horizontal chunk distance to the center chunk
+   * @param receiveDistance horizontal chunk distance to the center chunk, at least castDistance
+   */
+  public void setShadowDistances(int castDistance, int receiveDistance) {
+    if (castDistance < 0 || receiveDistance < castDistance)
+      throw new IllegalArgumentException(
+          "distances must satisfy 0 <= castDistance <= receiveDistance but got "
+              + castDistance
+              + ", "
+              + receiveDistance);
+    shadowCastDistance = castDistance;
+    shadowReceiveDistance = receiveDistance;
+  }
+
+  private RenderQueue.ShadowMode shadowModeForChunk(int chunkX, int chunkZ) {
+    int distance = distanceToCenterChunk(chunkX, chunkZ);
+    if (distance <= shadowCastDistance) return RenderQueue.ShadowMode.CastAndReceive;
+    if (distance <= shadowReceiveDistance) return RenderQueue.ShadowMode.Receive;
+    return RenderQueue.ShadowMode.Off;
   }
 
   long startedAppAt = 0;
@@ -163,20 +538,213 @@ public class ChunkGrid {
     long startedUpdateAt = System.currentTimeMillis();
     if (startedAppAt == 0) startedAppAt = startedUpdateAt;
     if (startedUpdateAt >= startedAppAt + 10000) {
-      log.info("During the last 10s {}ms were spent updating", totalUpdateTime);
+      log.info(
+          "During the last 10s {}ms were spent updating, {} chunks are hidden",
+          totalUpdateTime,
+          hiddenChunkCount);
       startedAppAt = startedUpdateAt;
       totalUpdateTime = 0;
     }
 
     for (int i = updateList.size(); i > 0; i--) {
-      NodeIndexWithChunk nodeIndexWithChunk = updateList.remove();
-      node.detachChildAt(nodeIndexWithChunk.nodeIndex);
-      node.attachChildAt(nodeIndexWithChunk.chunk.getNode(), nodeIndexWithChunk.nodeIndex);
+      ChunkWithLod chunkWithLod = updateList.remove();
+      Chunk chunk = chunkWithLod.chunk;
+      int lod = chunkWithLod.lod;
+      // the slot is looked up by location, which stays valid when the grid has been resized
+      Vec3i chunkLocation = chunk.getLocation();
+      if (!gridBounds.contains(chunkLocation.x, chunkLocation.z)) {
+        reweigh(chunk);
+        continue;
+      }
+      int nodeIndex = nodeIndexForGridLocation(gridLocationForChunkLocation(chunkLocation));
+
+      Node chunkNode = chunk.getNode(lod);
+      setSlotNode(nodeIndex, chunkNode);
+      Chunk previousChunk = slotChunks[nodeIndex];
+      if (previousChunk != chunk) {
+        if (previousChunk != null) {
+          waterSurfaceBuilder.chunkDetached(previousChunk);
+          notifyChunkDetached(previousChunk);
+          reweigh(previousChunk);
+        }
+        for (ChunkListener chunkListener : chunkListeners) chunkListener.chunkAttached(chunk);
+      }
+      waterSurfaceBuilder.chunkAttached(chunk);
+      if (regionBatcher != null) {
+        RegionBatcher.Region previousRegion = slotRegions[nodeIndex];
+        if (previousChunk != null) regionBatcher.chunkDetached(previousRegion, previousChunk);
+        slotRegions[nodeIndex] = regionBatcher.chunkAttached(chunk, chunkNode);
+      }
+      slotChunks[nodeIndex] = chunk;
+
+      // otherwise a generation with another level of detail is still pending for the slot
+      if (slotLods[nodeIndex] == lod) {
+        chunk.releaseNodesExcept(lod);
+        reweigh(chunk);
+      }
     }
+    updateChunkCacheMaximum(startedUpdateAt);
+
+    if (regionBatcher != null) regionBatcher.update();
+    waterSurfaceBuilder.update();
 
     totalUpdateTime += System.currentTimeMillis() - startedUpdateAt;
   }
 
+  /**
+   * Hides the chunks that can't be seen from the view location, e.g. caves behind solid rock. Runs
+   * a breadth-first search from the view chunk that only passes through chunks between faces that
+   * are connected by non-opaque blocks, and never turns back towards the view chunk. Must be
+   * called from the render thread after {@link #update()}.
+   *
+   * <p>Also assigns the shadow modes, see {@link #setShadowDistances(int, int)}.
+   */
+  public void updateVisibility(Vector3f viewLocation) {
+    int startX = (int) Math.floor(viewLocation.x / chunkSize.x) - firstGridChunkX;
+    int startY = (int) Math.floor(viewLocation.y / chunkSize.y);
+    int startZ = (int) Math.floor(viewLocation.z / chunkSize.z) - firstGridChunkZ;
+    boolean isInsideGrid =
+        startX >= 0
+            && startY >= 0
+            && startZ >= 0
+            && startX < gridSize.x
+            && startY < gridSize.y
+            && startZ < gridSize.z;
+
+    visibilitySearchId++;
+    if (isInsideGrid) searchVisibleChunks(startX, startY, startZ);
+
+    hiddenChunkCount = 0;
+    for (int x = 0; x < gridSize.x; x++) {
+      for (int z = 0; z < gridSize.z; z++) {
+        RenderQueue.ShadowMode shadowMode =
+            shadowModeForChunk(firstGridChunkX + x, firstGridChunkZ + z);
+        for (int y = 0; y < gridSize.y; y++) {
+          int nodeIndex = nodeIndexForRelativeLocation(x, y, z);
+          boolean isVisible =
+              !isInsideGrid || visibilitySearchIds[relativeIndex(x, y, z)] == visibilitySearchId;
+          if (!isVisible) hiddenChunkCount++;
+
+          // batched chunks are drawn as part of their region batch instead
+          RegionBatcher.Region region = slotRegions[nodeIndex];
+          boolean isBatched = region != null && region.isBatched();
+          if (isVisible && isBatched) region.markVisible(shadowMode);
+          Spatial slotNode = getSlotNode(nodeIndex);
+          slotNode.setShadowMode(shadowMode);
+          slotNode.setCullHint(
+              isVisible && !isBatched ? Spatial.CullHint.Inherit : Spatial.CullHint.Always);
+        }
+      }
+    }
+
+    if (regionBatcher != null) regionBatcher.applyVisibility();
+  }
+
+  private void searchVisibleChunks(int startX, int startY, int startZ) {
+    int head = 0;
+    int tail = 0;
+    int startIndex = relativeIndex(startX, startY, startZ);
+    visibilitySearchIds[startIndex] = visibilitySearchId;
+    travelledFaces[startIndex] = 0;
+    entryFaces[startIndex] = -1;
+    visibilityQueue[tail++] = startIndex;
+
+    while (head < tail) {
+      int index = visibilityQueue[head++];
+      int x = index / (gridSize.y * gridSize.z);
+      int y = index / gridSize.z % gridSize.y;
+      int z = index % gridSize.z;
+      Chunk chunk = slotChunks[nodeIndexForRelativeLocation(x, y, z)];
+
+      for (Face face : faces) {
+        if ((travelledFaces[index] & (1 << face.opposite().ordinal())) != 0) continue;
+        boolean isBlocked =
+            entryFaces[index] >= 0
+                && chunk != null
+                && !chunk.isConnected(faces[entryFaces[index]], face);
+        if (isBlocked) continue;
+
+        int nextX = x + face.dx;
+        int nextY = y + face.dy;
+        int nextZ = z + face.dz;
+        boolean isOutsideGrid =
+            nextX < 0
+                || nextY < 0
+                || nextZ < 0
+                || nextX >= gridSize.x
+                || nextY >= gridSize.y
+                || nextZ >= gridSize.z;
+        if (isOutsideGrid) continue;
+
+        int nextIndex = relativeIndex(nextX, nextY, nextZ);
+        if (visibilitySearchIds[nextIndex] == visibilitySearchId) continue;
+        visibilitySearchIds[nextIndex] = visibilitySearchId;
+        travelledFaces[nextIndex] = (byte) (travelledFaces[index] | (1 << face.ordinal()));
+        entryFaces[nextIndex] = (byte) face.opposite().ordinal();
+        visibilityQueue[tail++] = nextIndex;
+      }
+    }
+  }
+
+  // x and z are relative to the first grid chunk
+  private int relativeIndex(int x, int y, int z) {
+    return (x * gridSize.y + y) * gridSize.z + z;
+  }
+
+  private int nodeIndexForRelativeLocation(int x, int y, int z) {
+    return gridIndexX(gridOffsetX + x) * gridSize.y * gridSize.z
+        + y * gridSize.z
+        + gridIndexZ(gridOffsetZ + z);
+  }
+
+  // attaches empty nodes for the slots of the area at the quadtree leaves below the parent
+  private void buildQuadtree(Node parent, int startX, int startZ, int width, int depth) {
+    if (width <= QUADTREE_LEAF_SIZE && depth <= QUADTREE_LEAF_SIZE) {
+      Node leaf = new Node("quadtreeLeaf");
+      for (int x = startX; x < startX + width; x++) {
+        for (int y = 0; y < gridSize.y; y++) {
+          for (int z = startZ; z < startZ + depth; z++) {
+            int nodeIndex = x * gridSize.y * gridSize.z + y * gridSize.z + z;
+            slotParents[nodeIndex] = leaf;
+            slotChildIndexes[nodeIndex] = leaf.getQuantity();
+            leaf.attachChild(new Node("empty"));
+          }
+        }
+      }
+      parent.attachChild(leaf);
+      return;
+    }
+
+    Node quadtreeNode = new Node("quadtree");
+    int halfWidth = (width + 1) / 2;
+    int halfDepth = (depth + 1) / 2;
+    for (int i = 0; i < 2; i++) {
+      for (int j = 0; j < 2; j++) {
+        int quarterWidth = i == 0 ? halfWidth : width - halfWidth;
+        int quarterDepth = j == 0 ? halfDepth : depth - halfDepth;
+        if (quarterWidth > 0 && quarterDepth > 0) {
+          buildQuadtree(
+              quadtreeNode,
+              startX + i * halfWidth,
+              startZ + j * halfDepth,
+              quarterWidth,
+              quarterDepth);
+        }
+      }
+    }
+    parent.attachChild(quadtreeNode);
+  }
+
+  private Spatial getSlotNode(int nodeIndex) {
+    return slotParents[nodeIndex].getChild(slotChildIndexes[nodeIndex]);
+  }
+
+  private void setSlotNode(int nodeIndex, Spatial slotNode) {
+    Node parent = slotParents[nodeIndex];
+    parent.detachChildAt(slotChildIndexes[nodeIndex]);
+    parent.attachChildAt(slotNode, slotChildIndexes[nodeIndex]);
+  }
+
   private int nodeIndexForGridLocation(Vec3i gridLocation) {
     return gridLocation.x * gridSize.y * gridSize.z + gridLocation.y * gridSize.z + gridLocation.z;
   }
@@ -193,48 +761,82 @@ public class ChunkGrid {
     return (z + gridSize.z) % gridSize.z;
   }
 
+  // the slots of the column that falls out of the grid get the chunks of the new column
   private void stepTowardsNewCenterGridLocationX(boolean isPlus) {
+    gridOffsetX = gridIndexX(isPlus ? gridOffsetX + 1 : gridOffsetX - 1);
+    firstGridChunkX += isPlus ? 1 : -1;
+    publishGridBounds();
+
     int gridX = gridIndexX(isPlus ? gridOffsetX - 1 : gridOffsetX);
-    int chunkX = isPlus ? firstGridChunkLocation.x + gridSize.x - 1 : firstGridChunkLocation.x;
+    int chunkX = isPlus ? firstGridChunkX + gridSize.x - 1 : firstGridChunkX;
 
     for (int y = 0; y < gridSize.y; y++) {
       for (int z = 0; z < gridSize.z; z++) {
         int gridZ = gridIndexZ(gridOffsetZ + z);
         Vec3i gridLocation = new Vec3i(gridX, y, gridZ);
-        Vec3i chunkLocation = new Vec3i(chunkX, y, firstGridChunkLocation.z + z);
+        Vec3i chunkLocation = new Vec3i(chunkX, y, firstGridChunkZ + z);
+        recordDemand(chunkLocation);
         scheduleChunkGeneration(gridLocation, chunkLocation);
       }
     }
-
-    gridOffsetX = gridIndexX(isPlus ? gridOffsetX + 1 : gridOffsetX - 1);
-    firstGridChunkLocation.x += isPlus ? 1 : -1;
   }
 
   private void stepTowardsNewCenterGridLocationZ(boolean isPlus) {
+    gridOffsetZ = gridIndexZ(isPlus ? gridOffsetZ + 1 : gridOffsetZ - 1);
+    firstGridChunkZ += isPlus ? 1 : -1;
+    publishGridBounds();
+
     int gridZ = gridIndexZ(isPlus ? gridOffsetZ - 1 : gridOffsetZ);
-    int chunkZ = isPlus ? firstGridChunkLocation.z + gridSize.z - 1 : firstGridChunkLocation.z;
+    int chunkZ = isPlus ? firstGridChunkZ + gridSize.z - 1 : firstGridChunkZ;
 
     for (int x = 0; x < gridSize.x; x++) {
       int gridX = gridIndexX(gridOffsetX + x);
 
       for (int y = 0; y < gridSize.y; y++) {
         Vec3i gridLocation = new Vec3i(gridX, y, gridZ);
-        Vec3i chunkLocation = new Vec3i(firstGridChunkLocation.x + x, y, chunkZ);
+        Vec3i chunkLocation = new Vec3i(firstGridChunkX + x, y, chunkZ);
+        recordDemand(chunkLocation);
         scheduleChunkGeneration(gridLocation, chunkLocation);
       }
     }
+  }
 
-    gridOffsetZ = gridIndexZ(isPlus ? gridOffsetZ + 1 : gridOffsetZ - 1);
-    firstGridChunkLocation.z += isPlus ? 1 : -1;
+  private void recordDemand(Vec3i chunkLocation) {
+    if (chunkPrefetcher != null)
+      chunkPrefetcher.recordDemand(
+          ChunkIndex.key(chunkLocation.x, chunkLocation.y, chunkLocation.z));
+  }
+
+  /** Generates the chunk blocks without creating the chunk's node. */
+  public void prefetchChunk(int chunkX, int chunkY, int chunkZ) {
+    getChunk(chunkX, chunkY, chunkZ);
+  }
+
+  public boolean isChunkResident(long key) {
+    return chunkIndex.get(key) != null;
   }
 
   private void scheduleChunkGeneration(Vec3i gridLocation, Vec3i chunkLocation) {
+    int nodeIndex = nodeIndexForGridLocation(gridLocation);
+    int lod = lodForChunk(chunkLocation.x, chunkLocation.z);
+    slotLods[nodeIndex] = (byte) lod;
+    pendingChunkCount.incrementAndGet();
     chunkMeshGenerationExecutorService.submit(
         () -> {
-          Chunk chunk = cachedChunks.get(chunkLocation);
-          chunk.getNode();
-          int nodeIndex = nodeIndexForGridLocation(gridLocation);
-          updateList.add(new NodeIndexWithChunk(nodeIndex, chunk));
+          try {
+            // the weight is only calculated on insertion, update it now that the mesh exists. That
+            // also pins chunks that have been cached before they entered the grid, unless they
+            // have been evicted in the meantime
+            Chunk chunk;
+            do {
+              if (!gridBounds.contains(chunkLocation.x, chunkLocation.z)) return;
+              chunk = cachedChunks.get(chunkLocation);
+              chunk.getNode(lod);
+            } while (!cachedChunks.asMap().replace(chunkLocation, chunk, chunk));
+            updateList.add(new ChunkWithLod(chunk, lod));
+          } finally {
+            pendingChunkCount.decrementAndGet();
+          }
         });
   }
 
@@ -242,15 +844,49 @@ public class ChunkGrid {
     return createChunkBlocks.apply(chunkLocation);
   }
 
+  private Optional<Block[][][]> readStoredChunkBlocks(Vec3i chunkLocation) {
+    try {
+      return worldStore
+          .read(chunkLocation.x, chunkLocation.y, chunkLocation.z)
+          .map(data -> chunkCodec.decode(data, () -> generateChunkBlocks(chunkLocation)));
+    } catch (IOException | RuntimeException e) {
+      log.warn("Could not read stored chunk at {}, generating it instead", chunkLocation, e);
+      return Optional.empty();
+    }
+  }
+
+  /** Saves all dirty chunks and waits until everything has been written. */
+  public void close() {
+    for (Chunk chunk : cachedChunks.asMap().values()) {
+      if (chunk.isDirty()) {
+        chunkSaver.save(chunk.getLocation(), chunk.getBlocks());
+        chunk.setDirty(false);
+      }
+    }
+    chunkSaver.close();
+    if (meshCache != null) meshCache.close();
+  }
+
   private Vec3i gridLocationForChunkLocation(Vec3i chunkLocation) {
     return new Vec3i(
-        gridIndexX(gridOffsetX + chunkLocation.x - firstGridChunkLocation.x),
+        gridIndexX(gridOffsetX + chunkLocation.x - firstGridChunkX),
         chunkLocation.y,
-        gridIndexZ(gridOffsetZ + chunkLocation.z - firstGridChunkLocation.z));
+        gridIndexZ(gridOffsetZ + chunkLocation.z - firstGridChunkZ));
   }
 
   public Chunk getChunk(Vec3i chunkLocation) {
-    return cachedChunks.get(chunkLocation);
+    return getChunk(chunkLocation.x, chunkLocation.y, chunkLocation.z);
+  }
+
+  /** Allocation-free and never loads the chunk, null if it isn't resident. */
+  public Chunk getResidentChunk(int chunkX, int chunkY, int chunkZ) {
+    return chunkIndex.get(ChunkIndex.key(chunkX, chunkY, chunkZ));
+  }
+
+  /** Allocation-free for resident chunks, loads the chunk otherwise. */
+  public Chunk getChunk(int chunkX, int chunkY, int chunkZ) {
+    Chunk chunk = chunkIndex.get(ChunkIndex.key(chunkX, chunkY, chunkZ));
+    return chunk != null ? chunk : cachedChunks.get(new Vec3i(chunkX, chunkY, chunkZ));
   }
 
   private String debugView() {
@@ -283,7 +919,7 @@ public class ChunkGrid {
       sb.append(z).append(' ');
       for (int x = 0; x < gridSize.x; x++) {
         int nodeIndex = x * gridSize.y * gridSize.z + y * gridSize.z + z;
-        Spatial node = this.node.getChild(nodeIndex);
+        Spatial node = getSlotNode(nodeIndex);
         sb.append("empty".equals(node.getName()) ? '-' : 'N').append(' ');
       }
 
@@ -305,17 +941,214 @@ public class ChunkGrid {
   }
 
   public Optional<Block> getBlock(int x, int y, int z) {
+    return Optional.ofNullable(getNullableBlock(x, y, z));
+  }
+
+  public Block getNullableBlock(int x, int y, int z) {
+    return getNullableBlockInChunk(getChunkForWorldLocation(x, y, z), x, y, z);
+  }
+
+  /**
+   * Like {@link #getNullableBlock(int, int, int)} but reaches the block's chunk through the
+   * neighbor links of a nearby chunk, which is cheaper for repeated lookups around a location.
+   */
+  public Block getNullableBlock(Chunk nearbyChunk, int x, int y, int z) {
     Chunk chunk =
-        getChunk(
-            new Vec3i(
-                (int) Math.floor((float) x / chunkSize.x),
-                (int) Math.floor((float) y / chunkSize.y),
-                (int) Math.floor((float) z / chunkSize.z)));
-    return chunk.getBlock(
-        (x % chunkSize.x + chunkSize.x) % chunkSize.x,
-        (y % chunkSize.y + chunkSize.y) % chunkSize.y,
-        (z % chunkSize.z + chunkSize.z) % chunkSize.z);
-  }
-
-  private record NodeIndexWithChunk(int nodeIndex, Chunk chunk) {}
+        nearbyChunk.getChunkAt(
+            Math.floorDiv(x, chunkSize.x),
+            Math.floorDiv(y, chunkSize.y),
+            Math.floorDiv(z, chunkSize.z));
+    return getNullableBlockInChunk(chunk, x, y, z);
+  }
+
+  /**
+   * Walks the blocks along a ray with the Amanatides-Woo DDA and reports the first one it enters.
+   * Doesn't allocate and doesn't load chunks: the ray stops at chunks that aren't resident and
+   * when it leaves the world downwards or upwards.
+   *
+   * @param maxDistance maximum distance from the origin to the hit location
+   * @return whether a block has been hit, see {@link RaycastHit#isHit}
+   */
+  public boolean raycast(
+      float originX,
+      float originY,
+      float originZ,
+      float directionX,
+      float directionY,
+      float directionZ,
+      float maxDistance,
+      @NonNull RaycastHit hit) {
+    float lengthSquared =
+        directionX * directionX + directionY * directionY + directionZ * directionZ;
+    float length = (float) Math.sqrt(lengthSquared);
+    if (length == 0) throw new IllegalArgumentException("direction must not be zero");
+    directionX /= length;
+    directionY /= length;
+    directionZ /= length;
+
+    int x = (int) Math.floor(originX);
+    int y = (int) Math.floor(originY);
+    int z = (int) Math.floor(originZ);
+    int stepX = directionX > 0 ? 1 : directionX < 0 ? -1 : 0;
+    int stepY = directionY > 0 ? 1 : directionY < 0 ? -1 : 0;
+    int stepZ = directionZ > 0 ? 1 : directionZ < 0 ? -1 : 0;
+    // distance along the ray between block borders, and to the next border, per axis
+    float deltaX = stepX != 0 ? Math.abs(1 / directionX) : Float.POSITIVE_INFINITY;
+    float deltaY = stepY != 0 ? Math.abs(1 / directionY) : Float.POSITIVE_INFINITY;
+    float deltaZ = stepZ != 0 ? Math.abs(1 / directionZ) : Float.POSITIVE_INFINITY;
+    float nextX = distanceToBorder(originX, x, stepX, directionX);
+    float nextY = distanceToBorder(originY, y, stepY, directionY);
+    float nextZ = distanceToBorder(originZ, z, stepZ, directionZ);
+
+    int worldHeight = gridSize.y * chunkSize.y;
+    Chunk chunk = null;
+    float distance = 0;
+    Face face = null;
+    hit.isHit = false;
+
+    while (distance <= maxDistance) {
+      if (y < 0 && stepY <= 0) return false;
+      if (y >= worldHeight && stepY >= 0) return false;
+
+      if (y >= 0 && y < worldHeight) {
+        int chunkX = Math.floorDiv(x, chunkSize.x);
+        int chunkY = Math.floorDiv(y, chunkSize.y);
+        int chunkZ = Math.floorDiv(z, chunkSize.z);
+        boolean isOtherChunk =
+            chunk == null
+                || chunk.getLocation().x != chunkX
+                || chunk.getLocation().y != chunkY
+                || chunk.getLocation().z != chunkZ;
+        if (isOtherChunk) {
+          // the ray crosses one chunk face at a time, so the neighbor link is usually there
+          Chunk neighbor =
+              chunk != null && face != null ? chunk.getNeighbor(face.opposite()) : null;
+          chunk =
+              neighbor != null ? neighbor : chunkIndex.get(ChunkIndex.key(chunkX, chunkY, chunkZ));
+          if (chunk == null) return false;
+        }
+
+        Block block = getNullableBlockInChunk(chunk, x, y, z);
+        if (block != null) {
+          hit.isHit = true;
+          hit.block = block;
+          hit.blockX = x;
+          hit.blockY = y;
+          hit.blockZ = z;
+          hit.face = face;
+          hit.distance = distance;
+          hit.x = originX + directionX * distance;
+          hit.y = originY + directionY * distance;
+          hit.z = originZ + directionZ * distance;
+          return true;
+        }
+      }
+
+      if (nextX <= nextY && nextX <= nextZ) {
+        x += stepX;
+        distance = nextX;
+        nextX += deltaX;
+        face = stepX > 0 ? Face.LEFT : Face.RIGHT;
+      } else if (nextY <= nextZ) {
+        y += stepY;
+        distance = nextY;
+        nextY += deltaY;
+        face = stepY > 0 ? Face.BOTTOM : Face.TOP;
+      } else {
+        z += stepZ;
+        distance = nextZ;
+        nextZ += deltaZ;
+        face = stepZ > 0 ? Face.FRONT : Face.BACK;
+      }
+    }
+    return false;
+  }
+
+  public boolean raycast(
+      @NonNull Vector3f origin,
+      @NonNull Vector3f direction,
+      float maxDistance,
+      @NonNull RaycastHit hit) {
+    return raycast(
+        origin.x, origin.y, origin.z, direction.x, direction.y, direction.z, maxDistance, hit);
+  }
+
+  /**
+   * Casts many rays, e.g. for line of sight checks. Ray i starts at origins[3 * i] to origins[3 * i
+   * + 2] and goes in the direction at the same indexes of directions, its result is written to
+   * hits[i].
+   *
+   * @return number of rays that hit a block
+   */
+  public int raycast(
+      @NonNull float[] origins,
+      @NonNull float[] directions,
+      float maxDistance,
+      @NonNull RaycastHit[] hits) {
+    if (origins.length != directions.length || origins.length != hits.length * 3)
+      throw new IllegalArgumentException(
+          "origins and directions must have 3 values per hit but got "
+              + origins.length
+              + ", "
+              + directions.length
+              + " for "
+              + hits.length
+              + " hits");
+
+    int hitCount = 0;
+    for (int i = 0; i < hits.length; i++) {
+      boolean isHit =
+          raycast(
+              origins[3 * i],
+              origins[3 * i + 1],
+              origins[3 * i + 2],
+              directions[3 * i],
+              directions[3 * i + 1],
+              directions[3 * i + 2],
+              maxDistance,
+              hits[i]);
+      if (isHit) hitCount++;
+    }
+    return hitCount;
+  }
+
+  // distance along the ray from the origin to the first block border on the axis
+  private static float distanceToBorder(float origin, int block, int step, float direction) {
+    if (step > 0) return (block + 1 - origin) / direction;
+    if (step < 0) return (origin - block) / -direction;
+    return Float.POSITIVE_INFINITY;
+  }
+
+  public Chunk getChunkForWorldLocation(int x, int y, int z) {
+    return getChunk(
+        Math.floorDiv(x, chunkSize.x), Math.floorDiv(y, chunkSize.y), Math.floorDiv(z, chunkSize.z));
+  }
+
+  private Block getNullableBlockInChunk(Chunk chunk, int x, int y, int z) {
+    int localX = Math.floorMod(x, chunkSize.x);
+    int localY = Math.floorMod(y, chunkSize.y);
+    int localZ = Math.floorMod(z, chunkSize.z);
+    return chunk.getBlocks()[localX][localY][localZ];
+  }
+
+  /**
+   * Gets notified on the render thread when a chunk is shown in the grid and when it leaves the
+   * grid, e.g. to freeze the entities in it. Changing the level of detail isn't reported.
+   */
+  public interface ChunkListener {
+    void chunkAttached(Chunk chunk);
+
+    void chunkDetached(Chunk chunk);
+  }
+
+  private record ChunkWithLod(Chunk chunk, int lod) {}
+
+  private record GridBounds(int firstChunkX, int firstChunkZ, int width, int depth) {
+    boolean contains(int chunkX, int chunkZ) {
+      return chunkX >= firstChunkX
+          && chunkZ >= firstChunkZ
+          && chunkX < firstChunkX + width
+          && chunkZ < firstChunkZ + depth;
+    }
+  }
 }
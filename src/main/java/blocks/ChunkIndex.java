@@ -0,0 +1,131 @@
+package blocks;
+
+import lombok.NonNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open addressing hash map from packed chunk coordinates to resident chunks.
+ *
+ * <p>Reads are lock-free and allocation-free. Writes are rare (chunk loads and evictions) and
+ * synchronized. Readers may observe a slot that is being reused for another chunk, that's why
+ * the chunk's own key is compared after reading it.
+ */
+public class ChunkIndex {
+  // real keys never have the sign bit set, see key()
+  private static final long EMPTY = -1;
+  private static final long TOMBSTONE = -2;
+
+  private static final int INITIAL_CAPACITY = 1 << 14;
+
+  private volatile Table table = new Table(INITIAL_CAPACITY);
+  private int size = 0;
+  private int tombstoneCount = 0;
+
+  /**
+   * Packs chunk coordinates into a long. x and z use 25 bits, y uses 13 bits, the sign bit is
+   * always 0.
+   */
+  public static long key(int x, int y, int z) {
+    return ((long) (x & 0x1FFFFFF) << 38) | ((long) (y & 0x1FFF) << 25) | (z & 0x1FFFFFF);
+  }
+
+  static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /** @return the resident chunk or null if there is none */
+  public Chunk get(long key) {
+    Table table = this.table;
+    int mask = table.keys.length() - 1;
+
+    for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+      long slotKey = table.keys.get(i);
+      if (slotKey == EMPTY) return null;
+      if (slotKey == key) {
+        Chunk chunk = table.chunks.get(i);
+        return chunk != null && chunk.getKey() == key ? chunk : null;
+      }
+    }
+  }
+
+  public synchronized void put(@NonNull Chunk chunk) {
+    if ((size + tombstoneCount + 1) * 2 > table.keys.length()) rehash();
+
+    long key = chunk.getKey();
+    Table table = this.table;
+    int mask = table.keys.length() - 1;
+    int freeIndex = -1;
+
+    for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+      long slotKey = table.keys.get(i);
+      if (slotKey == key) {
+        table.chunks.set(i, chunk);
+        return;
+      }
+      if (slotKey == TOMBSTONE && freeIndex == -1) freeIndex = i;
+      if (slotKey == EMPTY) {
+        if (freeIndex == -1) freeIndex = i;
+        else tombstoneCount--;
+        break;
+      }
+    }
+
+    // publish the chunk before the key so that readers finding the key also find the chunk
+    table.chunks.set(freeIndex, chunk);
+    table.keys.set(freeIndex, key);
+    size++;
+  }
+
+  /** Removes the chunk if it's still the one stored for its key. */
+  public synchronized void remove(@NonNull Chunk chunk) {
+    long key = chunk.getKey();
+    Table table = this.table;
+    int mask = table.keys.length() - 1;
+
+    for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+      long slotKey = table.keys.get(i);
+      if (slotKey == EMPTY) return;
+      if (slotKey == key) {
+        if (table.chunks.get(i) == chunk) {
+          table.chunks.set(i, null);
+          table.keys.set(i, TOMBSTONE);
+          size--;
+          tombstoneCount++;
+        }
+        return;
+      }
+    }
+  }
+
+  private void rehash() {
+    int capacity = table.keys.length();
+    while (size * 4 > capacity) capacity *= 2;
+
+    Table oldTable = table;
+    Table newTable = new Table(capacity);
+    int mask = capacity - 1;
+
+    for (int i = 0; i < oldTable.keys.length(); i++) {
+      Chunk chunk = oldTable.chunks.get(i);
+      if (chunk == null) continue;
+
+      int j = hash(chunk.getKey()) & mask;
+      while (newTable.keys.get(j) != EMPTY) j = (j + 1) & mask;
+      newTable.chunks.set(j, chunk);
+      newTable.keys.set(j, chunk.getKey());
+    }
+
+    tombstoneCount = 0;
+    table = newTable;
+  }
+
+  private record Table(AtomicLongArray keys, AtomicReferenceArray<Chunk> chunks) {
+    Table(int capacity) {
+      this(new AtomicLongArray(capacity), new AtomicReferenceArray<>(capacity));
+      for (int i = 0; i < capacity; i++) keys.set(i, EMPTY);
+    }
+  }
+}
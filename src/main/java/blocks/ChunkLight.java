@@ -0,0 +1,262 @@
+package blocks;
+
+import com.simsilica.mathd.Vec3i;
+import lombok.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Sky light and block light of a chunk and a one block border around it, each in [0, {@link
+ * #MAX_LIGHT}].
+ *
+ * <p>Light is propagated by a breadth-first flood fill that loses one level per block, or two when
+ * passing through transparent blocks like water and leaves. Sky light enters from the top in the
+ * columns that are open to the sky and travels straight down through air without getting weaker.
+ * Light doesn't cross the border, so each chunk is lit on its own.
+ *
+ * <p>Coordinates are relative to the chunk and range from -1 to the chunk size inclusive.
+ */
+public class ChunkLight {
+  public static final int MAX_LIGHT = 15;
+
+  private static final int AIR = 0;
+  private static final int TRANSPARENT = 1;
+  private static final int OPAQUE = 2;
+
+  private static final Face[] faces = Face.values();
+
+  // chunk size + 2 for the border
+  private final Vec3i size;
+  // kind in bits 0-1, light emission in bits 2-5
+  private final byte[] cells;
+  // sky light in the upper, block light in the lower four bits
+  private final byte[] light;
+  // columns whose cell above the top border receives full sky light
+  private final boolean[] isOpenToSky;
+
+  private int[] queue = new int[64];
+
+  /**
+   * @param blocks the chunk blocks including the border, indexed from 0
+   * @param isOpenToSky whether sky light enters each border inclusive column from above, indexed
+   *     by x * (size.z + 2) + z
+   */
+  public ChunkLight(@NonNull Vec3i chunkSize, @NonNull Block[][][] blocks, boolean[] isOpenToSky) {
+    size = new Vec3i(chunkSize.x + 2, chunkSize.y + 2, chunkSize.z + 2);
+    if (blocks.length != size.x || blocks[0].length != size.y || blocks[0][0].length != size.z)
+      throw new IllegalArgumentException("blocks must include the border of chunk size " + size);
+    if (isOpenToSky.length != size.x * size.z)
+      throw new IllegalArgumentException("isOpenToSky must have one entry per border column");
+
+    this.isOpenToSky = isOpenToSky;
+    cells = new byte[size.x * size.y * size.z];
+    light = new byte[cells.length];
+
+    int tail = 0;
+    for (int x = 0; x < size.x; x++) {
+      for (int y = 0; y < size.y; y++) {
+        for (int z = 0; z < size.z; z++) {
+          int index = index(x, y, z);
+          cells[index] = cellOf(blocks[x][y][z]);
+          if (emission(index) > 0) {
+            light[index] = (byte) emission(index);
+            tail = enqueue(tail, index);
+          }
+        }
+      }
+    }
+    tail = seedSkyLight(tail);
+    propagate(tail);
+  }
+
+  private static byte cellOf(Block block) {
+    if (block == null) return AIR;
+    int kind = block.isTransparent() || block.type().isCutout() ? TRANSPARENT : OPAQUE;
+    return (byte) (kind | block.type().lightEmission << 2);
+  }
+
+  private int index(int x, int y, int z) {
+    return (x * size.y + y) * size.z + z;
+  }
+
+  private int kind(int index) {
+    return cells[index] & 0b11;
+  }
+
+  private int emission(int index) {
+    return cells[index] >> 2 & 0xF;
+  }
+
+  private int skyLight(int index) {
+    return light[index] >> 4 & 0xF;
+  }
+
+  private int blockLight(int index) {
+    return light[index] & 0xF;
+  }
+
+  private void setSkyLight(int index, int value) {
+    light[index] = (byte) (value << 4 | blockLight(index));
+  }
+
+  private void setBlockLight(int index, int value) {
+    light[index] = (byte) (skyLight(index) << 4 | value);
+  }
+
+  /** @return the brighter of sky light and block light */
+  public int lightAt(int x, int y, int z) {
+    int index = index(x + 1, y + 1, z + 1);
+    return Math.max(skyLight(index), blockLight(index));
+  }
+
+  public boolean isOpaqueAt(int x, int y, int z) {
+    return kind(index(x + 1, y + 1, z + 1)) == OPAQUE;
+  }
+
+  /** @return approximate number of bytes used */
+  public int getMemoryUsage() {
+    return 48 + cells.length * 2 + isOpenToSky.length;
+  }
+
+  /** @return a hash of the light values and block kinds that is the same across runs */
+  public long contentHash() {
+    long hash = 0xCBF29CE484222325L;
+    for (int i = 0; i < cells.length; i++) {
+      hash = (hash ^ (cells[i] << 8 | light[i] & 0xFF)) * 0x100000001B3L;
+    }
+    return hash;
+  }
+
+  /** Updates the light after a block of the chunk, not of the border, has changed. */
+  public void setBlock(int x, int y, int z, Block block) {
+    int index = index(x + 1, y + 1, z + 1);
+    cells[index] = cellOf(block);
+
+    // remove the light that may have depended on the old block, then fill the gap again from the
+    // remaining light around it
+    int tail = 0;
+    tail = removeLight(tail, index, true);
+    tail = removeLight(tail, index, false);
+    for (Face face : faces) {
+      int otherIndex = neighborIndex(index, face);
+      if (otherIndex >= 0) tail = enqueue(tail, otherIndex);
+    }
+    if (emission(index) > 0) {
+      setBlockLight(index, emission(index));
+      tail = enqueue(tail, index);
+    }
+    tail = seedSkyLight(tail);
+    propagate(tail);
+  }
+
+  // clears the light that has been propagated from the cell and queues the brighter cells at the
+  // edge of the cleared area, whose light has to be propagated again
+  private int removeLight(int propagationTail, int startIndex, boolean isSkyLight) {
+    int startLight = isSkyLight ? skyLight(startIndex) : blockLight(startIndex);
+    if (startLight == 0) return propagationTail;
+
+    // the removal queue is kept in a separate array so that the propagation queue can grow
+    int[] removals = new int[64];
+    int[] removalLights = new int[64];
+    int head = 0;
+    int tail = 0;
+    removals[tail] = startIndex;
+    removalLights[tail++] = startLight;
+    if (isSkyLight) setSkyLight(startIndex, 0);
+    else setBlockLight(startIndex, 0);
+
+    while (head < tail) {
+      int index = removals[head];
+      int removedLight = removalLights[head++];
+      for (Face face : faces) {
+        int otherIndex = neighborIndex(index, face);
+        if (otherIndex < 0) continue;
+        int otherLight = isSkyLight ? skyLight(otherIndex) : blockLight(otherIndex);
+        if (otherLight == 0) continue;
+
+        boolean isStraightDownSkyLight =
+            isSkyLight
+                && face == Face.BOTTOM
+                && removedLight == MAX_LIGHT
+                && otherLight == MAX_LIGHT;
+        if (otherLight < removedLight || isStraightDownSkyLight) {
+          if (isSkyLight) setSkyLight(otherIndex, 0);
+          else setBlockLight(otherIndex, 0);
+          if (tail == removals.length) {
+            removals = Arrays.copyOf(removals, tail * 2);
+            removalLights = Arrays.copyOf(removalLights, tail * 2);
+          }
+          removals[tail] = otherIndex;
+          removalLights[tail++] = otherLight;
+        } else {
+          propagationTail = enqueue(propagationTail, otherIndex);
+        }
+      }
+      if (!isSkyLight && emission(index) > 0) {
+        setBlockLight(index, emission(index));
+        propagationTail = enqueue(propagationTail, index);
+      }
+    }
+    return propagationTail;
+  }
+
+  // the top border cells of open columns get full sky light
+  private int seedSkyLight(int tail) {
+    for (int x = 0; x < size.x; x++) {
+      for (int z = 0; z < size.z; z++) {
+        int index = index(x, size.y - 1, z);
+        if (isOpenToSky[x * size.z + z] && kind(index) != OPAQUE && skyLight(index) < MAX_LIGHT) {
+          setSkyLight(index, MAX_LIGHT);
+          tail = enqueue(tail, index);
+        }
+      }
+    }
+    return tail;
+  }
+
+  private void propagate(int tail) {
+    int head = 0;
+    while (head < tail) {
+      int index = queue[head++];
+      int skyLight = skyLight(index);
+      int blockLight = blockLight(index);
+
+      for (Face face : faces) {
+        int otherIndex = neighborIndex(index, face);
+        if (otherIndex < 0 || kind(otherIndex) == OPAQUE) continue;
+
+        int cost = kind(otherIndex) == TRANSPARENT ? 2 : 1;
+        boolean isStraightDown = face == Face.BOTTOM && kind(otherIndex) == AIR;
+        int otherSkyLight =
+            isStraightDown && skyLight == MAX_LIGHT ? MAX_LIGHT : Math.max(skyLight - cost, 0);
+        int otherBlockLight = Math.max(blockLight - cost, 0);
+
+        boolean isBrighter = false;
+        if (otherSkyLight > skyLight(otherIndex)) {
+          setSkyLight(otherIndex, otherSkyLight);
+          isBrighter = true;
+        }
+        if (otherBlockLight > blockLight(otherIndex)) {
+          setBlockLight(otherIndex, otherBlockLight);
+          isBrighter = true;
+        }
+        if (isBrighter) tail = enqueue(tail, otherIndex);
+      }
+    }
+  }
+
+  private int enqueue(int tail, int index) {
+    if (tail == queue.length) queue = Arrays.copyOf(queue, tail * 2);
+    queue[tail] = index;
+    return tail + 1;
+  }
+
+  // -1 outside of the border
+  private int neighborIndex(int index, Face face) {
+    int x = index / (size.y * size.z) + face.dx;
+    int y = index / size.z % size.y + face.dy;
+    int z = index % size.z + face.dz;
+    boolean isOutside = x < 0 || y < 0 || z < 0 || x >= size.x || y >= size.y || z >= size.z;
+    return isOutside ? -1 : index(x, y, z);
+  }
+}
@@ -0,0 +1,177 @@
+package blocks;
+
+import com.jme3.math.Vector3f;
+import com.simsilica.mathd.Vec3i;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates chunk blocks beyond the {@link ChunkGrid} edge in the direction the player is moving,
+ * so that they are already cached once the grid reaches them.
+ */
+@Slf4j
+public class ChunkPrefetcher {
+  private static final int MAX_IN_FLIGHT_PREFETCHES = 256;
+  private static final long REPORT_INTERVAL_MILLIS = 10000;
+
+  private final ChunkGrid chunkGrid;
+  private final ExecutorService prefetchExecutorService;
+  private final float lookaheadSeconds;
+  private final int maxLookaheadChunks;
+
+  private final Set<Long> prefetchedChunkKeys = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger inFlightPrefetchCount = new AtomicInteger();
+
+  // a hit is a prefetched chunk that was ready when the grid needed it, a late hit was still being
+  // generated and a miss wasn't prefetched at all
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong lateHitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private long wastedCount = 0;
+  private long lastReportAt = 0;
+
+  private final Vector3f velocity = new Vector3f();
+
+  public ChunkPrefetcher(
+      @NonNull ChunkGrid chunkGrid,
+      @NonNull ExecutorService prefetchExecutorService,
+      float lookaheadSeconds,
+      int maxLookaheadChunks) {
+    this.chunkGrid = chunkGrid;
+    this.prefetchExecutorService = prefetchExecutorService;
+    this.lookaheadSeconds = lookaheadSeconds;
+    this.maxLookaheadChunks = maxLookaheadChunks;
+  }
+
+  public void update(PlayerEntity player) {
+    report();
+
+    player.rotation.mult(player.direction, velocity);
+    velocity.y = 0;
+    if (velocity.lengthSquared() == 0) return;
+
+    Vec3i chunkSize = chunkGrid.getChunkSize();
+    Vec3i gridSize = chunkGrid.getGridSize();
+    float maxLookaheadDistance = maxLookaheadChunks * Math.max(chunkSize.x, chunkSize.z);
+    float lookaheadDistance = Math.min(player.velocity * lookaheadSeconds, maxLookaheadDistance);
+    velocity.normalizeLocal().multLocal(lookaheadDistance);
+
+    int firstX = chunkGrid.getFirstGridChunkX();
+    int firstZ = chunkGrid.getFirstGridChunkZ();
+    int predictedFirstX =
+        (int)
+            Math.floor(
+                Math.floor((player.location.x + velocity.x) / chunkSize.x) - gridSize.x / 2f);
+    int predictedFirstZ =
+        (int)
+            Math.floor(
+                Math.floor((player.location.z + velocity.z) / chunkSize.z) - gridSize.z / 2f);
+
+    // bands of columns that the predicted grid contains but the current grid doesn't
+    if (predictedFirstX > firstX) {
+      prefetchColumns(
+          firstX + gridSize.x,
+          predictedFirstX + gridSize.x,
+          predictedFirstZ,
+          predictedFirstZ + gridSize.z);
+    } else if (predictedFirstX < firstX) {
+      prefetchColumns(predictedFirstX, firstX, predictedFirstZ, predictedFirstZ + gridSize.z);
+    }
+
+    if (predictedFirstZ > firstZ) {
+      prefetchColumns(
+          predictedFirstX,
+          predictedFirstX + gridSize.x,
+          firstZ + gridSize.z,
+          predictedFirstZ + gridSize.z);
+    } else if (predictedFirstZ < firstZ) {
+      prefetchColumns(predictedFirstX, predictedFirstX + gridSize.x, predictedFirstZ, firstZ);
+    }
+  }
+
+  // end values are exclusive
+  private void prefetchColumns(int startX, int endX, int startZ, int endZ) {
+    int gridHeight = chunkGrid.getGridSize().y;
+
+    for (int x = startX; x < endX; x++) {
+      for (int z = startZ; z < endZ; z++) {
+        for (int y = 0; y < gridHeight; y++) {
+          if (inFlightPrefetchCount.get() >= MAX_IN_FLIGHT_PREFETCHES) return;
+
+          long key = ChunkIndex.key(x, y, z);
+          if (chunkGrid.isChunkResident(key) || !prefetchedChunkKeys.add(key)) continue;
+
+          int chunkX = x;
+          int chunkY = y;
+          int chunkZ = z;
+          inFlightPrefetchCount.incrementAndGet();
+          prefetchExecutorService.submit(
+              () -> {
+                try {
+                  chunkGrid.prefetchChunk(chunkX, chunkY, chunkZ);
+                } finally {
+                  inFlightPrefetchCount.decrementAndGet();
+                }
+              });
+        }
+      }
+    }
+  }
+
+  /** Called by the grid whenever it needs a chunk because the grid moved. */
+  void recordDemand(long key) {
+    if (!prefetchedChunkKeys.remove(key)) {
+      missCount.incrementAndGet();
+    } else if (chunkGrid.isChunkResident(key)) {
+      hitCount.incrementAndGet();
+    } else {
+      lateHitCount.incrementAndGet();
+    }
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getLateHitCount() {
+    return lateHitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  private void report() {
+    long now = System.currentTimeMillis();
+    if (lastReportAt == 0) lastReportAt = now;
+    if (now < lastReportAt + REPORT_INTERVAL_MILLIS) return;
+    lastReportAt = now;
+
+    // prefetched chunks that have been evicted before the grid needed them
+    if (inFlightPrefetchCount.get() == 0) {
+      int sizeBefore = prefetchedChunkKeys.size();
+      prefetchedChunkKeys.removeIf(key -> !chunkGrid.isChunkResident(key));
+      wastedCount += sizeBefore - prefetchedChunkKeys.size();
+    }
+
+    long hits = hitCount.get();
+    long lateHits = lateHitCount.get();
+    long misses = missCount.get();
+    long total = hits + lateHits + misses;
+    if (total > 0) {
+      log.info(
+          "Prefetching: {}% hits, {}% late hits, {}% misses, {} wasted, {} pending",
+          hits * 100 / total,
+          lateHits * 100 / total,
+          misses * 100 / total,
+          wastedCount,
+          prefetchedChunkKeys.size());
+    }
+  }
+}
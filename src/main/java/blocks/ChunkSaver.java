@@ -0,0 +1,167 @@
+package blocks;
+
+import com.simsilica.mathd.Vec3i;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Writes chunk blocks to the {@link RegionFileStore} on a dedicated I/O thread.
+ *
+ * <p>Saves are queued per chunk location, so saving a chunk again before it has been written only
+ * writes the latest blocks. The queue is flushed every {@link #FLUSH_INTERVAL_MILLIS}, sorted by
+ * region file so that writes to the same file are grouped together, and made durable at once.
+ *
+ * <p>In {@link PersistenceMode#DELTA} the chunk blocks are generated again when writing, to store
+ * only the differences.
+ */
+@Slf4j
+public class ChunkSaver {
+  private static final long FLUSH_INTERVAL_MILLIS = 500;
+  private static final long REPORT_INTERVAL_MILLIS = 10000;
+
+  private final RegionFileStore worldStore;
+  private final ChunkCodec chunkCodec;
+  private final PersistenceMode persistenceMode;
+  private final Function<Vec3i, Block[][][]> createChunkBlocks;
+
+  // entries are removed after they have been written, so readers never miss blocks in between
+  private final Map<Vec3i, Block[][][]> pendingWrites = new ConcurrentHashMap<>();
+  private final Thread thread;
+  private volatile boolean isClosed = false;
+
+  private final AtomicLong coalescedWriteCount = new AtomicLong();
+  private final AtomicLong writtenByteCount = new AtomicLong();
+  private volatile long writtenBytesPerSecond = 0;
+  private long writtenByteCountAtLastReport = 0;
+  private long lastReportAt = System.currentTimeMillis();
+
+  public ChunkSaver(
+      @NonNull RegionFileStore worldStore,
+      @NonNull ChunkCodec chunkCodec,
+      @NonNull PersistenceMode persistenceMode,
+      @NonNull Function<Vec3i, Block[][][]> createChunkBlocks) {
+    this.worldStore = worldStore;
+    this.chunkCodec = chunkCodec;
+    this.persistenceMode = persistenceMode;
+    this.createChunkBlocks = createChunkBlocks;
+
+    thread = new Thread(this::run, "chunk-saver");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Queues the blocks for writing, replacing blocks that have been queued for the same chunk. */
+  public void save(@NonNull Vec3i chunkLocation, @NonNull Block[][][] blocks) {
+    if (pendingWrites.put(chunkLocation, blocks) != null) coalescedWriteCount.incrementAndGet();
+    // late saves, e.g. evictions during shutdown, are written right away
+    if (isClosed) flush();
+  }
+
+  /** @return blocks that have been queued but not written yet */
+  public Optional<Block[][][]> getPending(@NonNull Vec3i chunkLocation) {
+    return Optional.ofNullable(pendingWrites.get(chunkLocation));
+  }
+
+  public int getQueueDepth() {
+    return pendingWrites.size();
+  }
+
+  /** @return bytes written per second, averaged over the last report interval */
+  public long getWrittenBytesPerSecond() {
+    return writtenBytesPerSecond;
+  }
+
+  private void run() {
+    while (!isClosed) {
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS));
+      // the final flush happens in close()
+      if (isClosed) return;
+      flush();
+      report();
+    }
+  }
+
+  private synchronized void flush() {
+    Map<Long, List<Map.Entry<Vec3i, Block[][][]>>> writesByRegion = new TreeMap<>();
+    for (Map.Entry<Vec3i, Block[][][]> entry : pendingWrites.entrySet()) {
+      Vec3i chunkLocation = entry.getKey();
+      writesByRegion
+          .computeIfAbsent(
+              RegionFileStore.regionKey(chunkLocation.x, chunkLocation.z),
+              regionKey -> new ArrayList<>())
+          .add(Map.entry(chunkLocation, entry.getValue()));
+    }
+
+    for (List<Map.Entry<Vec3i, Block[][][]>> regionWrites : writesByRegion.values()) {
+      for (Map.Entry<Vec3i, Block[][][]> write : regionWrites) {
+        Vec3i chunkLocation = write.getKey();
+        try {
+          ByteBuffer data =
+              switch (persistenceMode) {
+                case FULL -> chunkCodec.encode(write.getValue());
+                case DELTA -> chunkCodec.encodeDelta(
+                    write.getValue(), createChunkBlocks.apply(chunkLocation));
+              };
+          writtenByteCount.addAndGet(data.remaining());
+          worldStore.write(chunkLocation.x, chunkLocation.y, chunkLocation.z, data);
+        } catch (IOException | RuntimeException e) {
+          log.warn("Could not store chunk at {}", chunkLocation, e);
+        }
+        // keeps the entry if it has been saved again in the meantime
+        pendingWrites.remove(chunkLocation, write.getValue());
+      }
+    }
+    if (writesByRegion.isEmpty()) return;
+
+    // a single force for the whole batch instead of one per chunk
+    try {
+      worldStore.flush();
+    } catch (IOException e) {
+      log.warn("Could not flush the world store", e);
+    }
+  }
+
+  private void report() {
+    long now = System.currentTimeMillis();
+    if (now < lastReportAt + REPORT_INTERVAL_MILLIS) return;
+
+    long writtenBytes = writtenByteCount.get();
+    writtenBytesPerSecond =
+        (writtenBytes - writtenByteCountAtLastReport) * 1000 / (now - lastReportAt);
+    writtenByteCountAtLastReport = writtenBytes;
+    lastReportAt = now;
+
+    log.info(
+        "Chunk saver: {} queued, {} KiB/s written, {} writes coalesced",
+        getQueueDepth(),
+        writtenBytesPerSecond / 1024,
+        coalescedWriteCount.get());
+  }
+
+  /** Stops the I/O thread after writing everything that has been queued so far. */
+  public void close() {
+    if (isClosed) return;
+    isClosed = true;
+    LockSupport.unpark(thread);
+
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+  }
+}
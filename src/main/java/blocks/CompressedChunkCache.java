@@ -0,0 +1,38 @@
+package blocks;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.simsilica.mathd.Vec3i;
+import lombok.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+/**
+ * Second cache tier for chunks that have been evicted from the {@link ChunkGrid} chunk cache.
+ * Only the block data is kept, encoded with the {@link ChunkCodec}. Meshes are not kept.
+ */
+public class CompressedChunkCache {
+  private final ChunkCodec chunkCodec;
+  private final Cache<Vec3i, byte[]> cache;
+
+  public CompressedChunkCache(@NonNull ChunkCodec chunkCodec, long maximumBytes) {
+    this.chunkCodec = chunkCodec;
+    cache =
+        Caffeine.newBuilder()
+            .maximumWeight(maximumBytes)
+            .weigher((Vec3i location, byte[] encodedBlocks) -> 16 + encodedBlocks.length)
+            .build();
+  }
+
+  public void put(@NonNull Vec3i location, @NonNull Block[][][] blocks) {
+    ByteBuffer encodedBlocks = chunkCodec.encode(blocks);
+    cache.put(location, encodedBlocks.array());
+  }
+
+  /** Removes the blocks from this cache because they are about to become uncompressed again. */
+  public Optional<Block[][][]> take(@NonNull Vec3i location) {
+    return Optional.ofNullable(cache.asMap().remove(location))
+        .map(encodedBlocks -> chunkCodec.decode(ByteBuffer.wrap(encodedBlocks)));
+  }
+}
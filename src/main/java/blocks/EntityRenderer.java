@@ -0,0 +1,108 @@
+package blocks;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.material.Material;
+import com.jme3.math.ColorRGBA;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.instancing.InstancedNode;
+import com.jme3.scene.shape.Box;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Draws the entities with hardware instancing. All entities of a kind share their meshes and all
+ * entities share their materials, so each entity part is a single draw call regardless of the
+ * number of entities.
+ *
+ * <p>Entity spatials are regular nodes below the instanced node, the systems move them as before
+ * and the instance transforms are uploaded once per frame. Must be used from the render thread.
+ */
+public class EntityRenderer {
+  @Getter private final InstancedNode node = new InstancedNode("entities");
+
+  private final Material bodyMaterial;
+  private final Material headMaterial;
+
+  private final Mesh animalBodyMesh;
+  private final Mesh animalHeadMesh;
+  private final Mesh playerBodyMesh;
+  private final Mesh playerHeadMesh;
+
+  // entities that have been added since the last update() and aren't instanced yet
+  private boolean hasNewEntities = false;
+
+  public EntityRenderer(@NonNull AssetManager assetManager) {
+    bodyMaterial = createMaterial(assetManager, ColorRGBA.Red);
+    headMaterial = createMaterial(assetManager, ColorRGBA.Blue);
+
+    Vector3f animalSize = AnimalSystem.SIZE;
+    animalBodyMesh = new Box(animalSize.x / 2, animalSize.y / 2, animalSize.z / 2);
+    animalHeadMesh = new Box(animalSize.x / 20, animalSize.y / 20, animalSize.z / 20);
+    Vector3f playerSize = PlayerEntity.size;
+    playerBodyMesh = new Box(playerSize.x / 2, playerSize.y / 2, playerSize.z / 2);
+    playerHeadMesh = new Box(playerSize.x / 20, playerSize.y / 20, playerSize.z / 20);
+  }
+
+  private static Material createMaterial(AssetManager assetManager, ColorRGBA color) {
+    Material material = new Material(assetManager, "Common/MatDefs/Misc/Unshaded.j3md");
+    material.setColor("Color", color);
+    material.setBoolean("UseInstancing", true);
+    return material;
+  }
+
+  /** @return the attached spatial of a new animal, its origin is the body center */
+  public Spatial createAnimalSpatial() {
+    Vector3f size = AnimalSystem.SIZE;
+    return createSpatial("animal", animalBodyMesh, animalHeadMesh, new Vector3f(size.x / 2, 0, 0));
+  }
+
+  /** @return the attached spatial of a new player, its origin is the body center */
+  public Spatial createPlayerSpatial() {
+    Vector3f size = PlayerEntity.size;
+    return createSpatial(
+        "player", playerBodyMesh, playerHeadMesh, new Vector3f(0, size.y / 6 * 5 / 2, size.x / 2));
+  }
+
+  private Spatial createSpatial(
+      String name, Mesh bodyMesh, Mesh headMesh, Vector3f headTranslation) {
+    Geometry bodyGeometry = new Geometry(name, bodyMesh);
+    bodyGeometry.setMaterial(bodyMaterial);
+
+    Geometry headGeometry = new Geometry(name, headMesh);
+    headGeometry.setMaterial(headMaterial);
+    headGeometry.setLocalTranslation(headTranslation);
+
+    Node entityNode = new Node(name);
+    entityNode.attachChild(bodyGeometry);
+    entityNode.attachChild(headGeometry);
+    node.attachChild(entityNode);
+    hasNewEntities = true;
+    return entityNode;
+  }
+
+  /**
+   * Removes the spatial of an entity from the instanced geometries, which ignore the cull hints of
+   * single instances.
+   */
+  public void hide(@NonNull Spatial entitySpatial) {
+    entitySpatial.removeFromParent();
+  }
+
+  /** Shows the spatial of an entity that has been hidden. */
+  public void show(@NonNull Spatial entitySpatial) {
+    if (entitySpatial.getParent() == node) return;
+    node.attachChild(entitySpatial);
+    hasNewEntities = true;
+  }
+
+  /** Groups the geometries of new entities into the instanced geometries. */
+  public void update() {
+    if (!hasNewEntities) return;
+    node.instance();
+    hasNewEntities = false;
+  }
+}
@@ -0,0 +1,236 @@
+package blocks;
+
+import com.simsilica.mathd.Vec3i;
+import lombok.NonNull;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Buckets entities by the chunk they are in, so that proximity queries and per-chunk work only
+ * look at the entities of the chunks involved instead of all entities.
+ *
+ * <p>Entities are identified by small non-negative ids, e.g. the indexes of the {@link
+ * AnimalSystem}. Moving an entity within its chunk only updates its location, moving it into
+ * another chunk is a constant time swap between two buckets. The buckets are found through an
+ * open addressing table with primitive chunk keys like in {@link ChunkIndex}. Not thread-safe, and
+ * the index must not be changed while iterating over it.
+ */
+public class EntitySpatialIndex {
+  private static final long NOT_INDEXED = -1;
+  // chunk keys are never negative, see ChunkIndex.key()
+  private static final long EMPTY = -1;
+  private static final long TOMBSTONE = -2;
+  private static final int INITIAL_BUCKET_CAPACITY = 16;
+
+  private final Vec3i chunkSize;
+  // the bucket of each chunk key is at the same index
+  private long[] bucketKeys = emptyBucketKeys(INITIAL_BUCKET_CAPACITY);
+  private Bucket[] buckets = new Bucket[INITIAL_BUCKET_CAPACITY];
+  private int bucketCount = 0;
+  private int tombstoneCount = 0;
+
+  // indexed by entity id
+  private long[] chunkKeys = new long[0];
+  private int[] bucketPositions = new int[0];
+  private float[] xs = new float[0];
+  private float[] ys = new float[0];
+  private float[] zs = new float[0];
+
+  public EntitySpatialIndex(@NonNull Vec3i chunkSize) {
+    this.chunkSize = chunkSize.clone();
+  }
+
+  /** Adds the entity or updates its location. */
+  public void put(int id, float x, float y, float z) {
+    if (id < 0) throw new IllegalArgumentException("id must be >= 0 but got " + id);
+    if (id >= chunkKeys.length) grow(Math.max(id + 1, chunkKeys.length * 2));
+
+    xs[id] = x;
+    ys[id] = y;
+    zs[id] = z;
+    long chunkKey =
+        ChunkIndex.key(
+            Math.floorDiv((int) Math.floor(x), chunkSize.x),
+            Math.floorDiv((int) Math.floor(y), chunkSize.y),
+            Math.floorDiv((int) Math.floor(z), chunkSize.z));
+    if (chunkKey == chunkKeys[id]) return;
+
+    if (chunkKeys[id] != NOT_INDEXED) removeFromBucket(id);
+    Bucket bucket = getOrAddBucket(chunkKey);
+    if (bucket.size == bucket.ids.length) bucket.ids = Arrays.copyOf(bucket.ids, bucket.size * 2);
+    bucket.ids[bucket.size] = id;
+    bucketPositions[id] = bucket.size++;
+    chunkKeys[id] = chunkKey;
+  }
+
+  public void remove(int id) {
+    if (!contains(id)) return;
+    removeFromBucket(id);
+    chunkKeys[id] = NOT_INDEXED;
+  }
+
+  public boolean contains(int id) {
+    return id >= 0 && id < chunkKeys.length && chunkKeys[id] != NOT_INDEXED;
+  }
+
+  private void grow(int capacity) {
+    int previousCapacity = chunkKeys.length;
+    chunkKeys = Arrays.copyOf(chunkKeys, capacity);
+    Arrays.fill(chunkKeys, previousCapacity, capacity, NOT_INDEXED);
+    bucketPositions = Arrays.copyOf(bucketPositions, capacity);
+    xs = Arrays.copyOf(xs, capacity);
+    ys = Arrays.copyOf(ys, capacity);
+    zs = Arrays.copyOf(zs, capacity);
+  }
+
+  // moves the last entity of the bucket into the gap
+  private void removeFromBucket(int id) {
+    int bucketIndex = bucketIndex(chunkKeys[id]);
+    Bucket bucket = buckets[bucketIndex];
+    int lastId = bucket.ids[--bucket.size];
+    bucket.ids[bucketPositions[id]] = lastId;
+    bucketPositions[lastId] = bucketPositions[id];
+    if (bucket.size == 0) {
+      bucketKeys[bucketIndex] = TOMBSTONE;
+      buckets[bucketIndex] = null;
+      bucketCount--;
+      tombstoneCount++;
+    }
+  }
+
+  // -1 if there is no bucket for the chunk
+  private int bucketIndex(long chunkKey) {
+    int mask = bucketKeys.length - 1;
+    for (int i = ChunkIndex.hash(chunkKey) & mask; ; i = (i + 1) & mask) {
+      if (bucketKeys[i] == chunkKey) return i;
+      if (bucketKeys[i] == EMPTY) return -1;
+    }
+  }
+
+  private Bucket getBucket(long chunkKey) {
+    int bucketIndex = bucketIndex(chunkKey);
+    return bucketIndex == -1 ? null : buckets[bucketIndex];
+  }
+
+  private Bucket getOrAddBucket(long chunkKey) {
+    Bucket bucket = getBucket(chunkKey);
+    if (bucket != null) return bucket;
+
+    if ((bucketCount + tombstoneCount + 1) * 2 > bucketKeys.length) rehash();
+    int mask = bucketKeys.length - 1;
+    // the key is absent, so the first empty slot or tombstone can take it
+    int i = ChunkIndex.hash(chunkKey) & mask;
+    while (bucketKeys[i] != EMPTY && bucketKeys[i] != TOMBSTONE) i = (i + 1) & mask;
+    if (bucketKeys[i] == TOMBSTONE) tombstoneCount--;
+
+    bucket = new Bucket();
+    bucketKeys[i] = chunkKey;
+    buckets[i] = bucket;
+    bucketCount++;
+    return bucket;
+  }
+
+  // also drops the tombstones
+  private void rehash() {
+    int capacity = bucketKeys.length;
+    while (bucketCount * 4 > capacity) capacity *= 2;
+
+    long[] oldBucketKeys = bucketKeys;
+    Bucket[] oldBuckets = buckets;
+    bucketKeys = emptyBucketKeys(capacity);
+    buckets = new Bucket[capacity];
+    int mask = capacity - 1;
+
+    for (int i = 0; i < oldBuckets.length; i++) {
+      if (oldBuckets[i] == null) continue;
+
+      int j = ChunkIndex.hash(oldBucketKeys[i]) & mask;
+      while (bucketKeys[j] != EMPTY) j = (j + 1) & mask;
+      bucketKeys[j] = oldBucketKeys[i];
+      buckets[j] = oldBuckets[i];
+    }
+
+    tombstoneCount = 0;
+  }
+
+  private static long[] emptyBucketKeys(int capacity) {
+    long[] bucketKeys = new long[capacity];
+    Arrays.fill(bucketKeys, EMPTY);
+    return bucketKeys;
+  }
+
+  /** @param chunkKey see {@link Chunk#getKey()} */
+  public void forEachInChunk(long chunkKey, @NonNull IntConsumer action) {
+    Bucket bucket = getBucket(chunkKey);
+    if (bucket == null) return;
+    for (int i = 0; i < bucket.size; i++) action.accept(bucket.ids[i]);
+  }
+
+  /** Visits the entities whose location is within the inclusive bounds. */
+  public void forEachInBox(
+      float minX,
+      float minY,
+      float minZ,
+      float maxX,
+      float maxY,
+      float maxZ,
+      @NonNull IntConsumer action) {
+    int minChunkX = Math.floorDiv((int) Math.floor(minX), chunkSize.x);
+    int minChunkY = Math.floorDiv((int) Math.floor(minY), chunkSize.y);
+    int minChunkZ = Math.floorDiv((int) Math.floor(minZ), chunkSize.z);
+    int maxChunkX = Math.floorDiv((int) Math.floor(maxX), chunkSize.x);
+    int maxChunkY = Math.floorDiv((int) Math.floor(maxY), chunkSize.y);
+    int maxChunkZ = Math.floorDiv((int) Math.floor(maxZ), chunkSize.z);
+
+    for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+      for (int chunkY = minChunkY; chunkY <= maxChunkY; chunkY++) {
+        for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+          Bucket bucket = getBucket(ChunkIndex.key(chunkX, chunkY, chunkZ));
+          if (bucket == null) continue;
+
+          for (int i = 0; i < bucket.size; i++) {
+            int id = bucket.ids[i];
+            boolean isInside =
+                xs[id] >= minX
+                    && ys[id] >= minY
+                    && zs[id] >= minZ
+                    && xs[id] <= maxX
+                    && ys[id] <= maxY
+                    && zs[id] <= maxZ;
+            if (isInside) action.accept(id);
+          }
+        }
+      }
+    }
+  }
+
+  /** Visits the entities whose location is at most radius away from the center. */
+  public void forEachInRadius(
+      float centerX, float centerY, float centerZ, float radius, @NonNull IntConsumer action) {
+    float radiusSquared = radius * radius;
+    forEachInBox(
+        centerX - radius,
+        centerY - radius,
+        centerZ - radius,
+        centerX + radius,
+        centerY + radius,
+        centerZ + radius,
+        id -> {
+          float dx = xs[id] - centerX;
+          float dy = ys[id] - centerY;
+          float dz = zs[id] - centerZ;
+          if (dx * dx + dy * dy + dz * dz <= radiusSquared) action.accept(id);
+        });
+  }
+
+  /** @return number of chunks that contain entities */
+  public int getOccupiedChunkCount() {
+    return bucketCount;
+  }
+
+  private static class Bucket {
+    private int[] ids = new int[4];
+    private int size = 0;
+  }
+}
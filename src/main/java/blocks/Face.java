@@ -0,0 +1,34 @@
+package blocks;
+
+/** The six faces of a block or chunk. */
+public enum Face {
+  LEFT(-1, 0, 0),
+  RIGHT(1, 0, 0),
+  BOTTOM(0, -1, 0),
+  TOP(0, 1, 0),
+  FRONT(0, 0, -1),
+  BACK(0, 0, 1);
+
+  private static final Face[] faces = values();
+
+  public final int dx;
+  public final int dy;
+  public final int dz;
+
+  Face(int dx, int dy, int dz) {
+    this.dx = dx;
+    this.dy = dy;
+    this.dz = dz;
+  }
+
+  public Face opposite() {
+    return faces[ordinal() ^ 1];
+  }
+
+  public static Face of(int dx, int dy, int dz) {
+    if (dx != 0) return dx < 0 ? LEFT : RIGHT;
+    if (dy != 0) return dy < 0 ? BOTTOM : TOP;
+    if (dz != 0) return dz < 0 ? FRONT : BACK;
+    throw new IllegalArgumentException("direction must not be zero");
+  }
+}
@@ -0,0 +1,280 @@
+package blocks;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.stream.IntStream;
+
+/**
+ * Surface height, terrain type and temperature of a square world area at several levels of
+ * detail.
+ *
+ * <p>Level 0 has one sample per block column, every further level halves the resolution and keeps
+ * the highest of the four finer samples. The pyramid is built once per seed in parallel tiles,
+ * stored in a file and served from a memory mapping of that file. {@link HeightmapTiles} keeps one
+ * pyramid per tile of the explored world.
+ *
+ * <p>File layout: header (magic, version, seed, origin x, origin z, level 0 size, level count)
+ * followed by the levels, each consisting of the heights as floats, the terrain type ordinals and
+ * the temperature ordinals in row order.
+ */
+@Slf4j
+public class HeightmapPyramid {
+  private static final int MAGIC = 0x48504D50;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 32;
+  // bytes per sample: float height, terrain type byte, temperature byte
+  private static final int SAMPLE_SIZE = 6;
+  private static final int TILE_SIZE = 64;
+
+  private static final TerrainType[] terrainTypes = TerrainType.values();
+  private static final Temperature[] temperatures = Temperature.values();
+
+  private final ByteBuffer buffer;
+  @Getter private final int originX;
+  @Getter private final int originZ;
+  /** number of samples per side on level 0 */
+  @Getter private final int size;
+
+  @Getter private final int levelCount;
+  private final int[] levelOffsets;
+
+  private HeightmapPyramid(ByteBuffer buffer) {
+    this.buffer = buffer;
+    originX = buffer.getInt(16);
+    originZ = buffer.getInt(20);
+    size = buffer.getInt(24);
+    levelCount = buffer.getInt(28);
+    levelOffsets = levelOffsets(size, levelCount);
+  }
+
+  /** @return the stored pyramid if it exists and has been built for the seed */
+  public static Optional<HeightmapPyramid> open(@NonNull Path path, long seed) {
+    if (!Files.exists(path)) return Optional.empty();
+
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER_SIZE) return Optional.empty();
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      boolean isValid =
+          buffer.getInt(0) == MAGIC
+              && buffer.getInt(4) == VERSION
+              && buffer.getLong(8) == seed
+              && channel.size() == fileSize(buffer.getInt(24), buffer.getInt(28));
+      return isValid ? Optional.of(new HeightmapPyramid(buffer)) : Optional.empty();
+    } catch (IOException e) {
+      log.warn("Could not open heightmap pyramid {}", path, e);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Samples the terrain generator in parallel and stores the result at the path. Stops with an
+   * {@link InterruptedIOException} if the calling thread is interrupted.
+   *
+   * @param size number of samples per side on level 0, must be divisible by 2^(levelCount - 1)
+   */
+  public static HeightmapPyramid build(
+      @NonNull TerrainGenerator terrainGenerator,
+      long seed,
+      @NonNull Path path,
+      int originX,
+      int originZ,
+      int size,
+      int levelCount)
+      throws IOException {
+    if (levelCount < 1 || size < 1 || size % (1 << (levelCount - 1)) != 0)
+      throw new IllegalArgumentException(
+          "size must be divisible by 2^(levelCount - 1) but got size "
+              + size
+              + " and level count "
+              + levelCount);
+    long fileSize = fileSize(size, levelCount);
+    if (fileSize > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("heightmap pyramid of size " + size + " is too big");
+
+    long startedAt = System.currentTimeMillis();
+    ByteBuffer buffer = ByteBuffer.allocate((int) fileSize);
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(4, VERSION);
+    buffer.putLong(8, seed);
+    buffer.putInt(16, originX);
+    buffer.putInt(20, originZ);
+    buffer.putInt(24, size);
+    buffer.putInt(28, levelCount);
+    int[] levelOffsets = levelOffsets(size, levelCount);
+
+    for (int level = 0; level < levelCount; level++) {
+      if (Thread.currentThread().isInterrupted())
+        throw new InterruptedIOException("heightmap pyramid build has been interrupted");
+
+      int finerLevel = level - 1;
+      int levelSize = size >> level;
+      int tilesPerSide = (levelSize + TILE_SIZE - 1) / TILE_SIZE;
+      int levelOffset = levelOffsets[level];
+      int finerLevelOffset = level > 0 ? levelOffsets[finerLevel] : 0;
+
+      // tiles write disjoint parts of the buffer
+      IntStream.range(0, tilesPerSide * tilesPerSide)
+          .parallel()
+          .forEach(
+              tile -> {
+                int startI = tile / tilesPerSide * TILE_SIZE;
+                int startJ = tile % tilesPerSide * TILE_SIZE;
+                for (int i = startI; i < Math.min(startI + TILE_SIZE, levelSize); i++) {
+                  for (int j = startJ; j < Math.min(startJ + TILE_SIZE, levelSize); j++) {
+                    if (finerLevel < 0) {
+                      Terrain terrain = terrainGenerator.terrainAt(originX + i, originZ + j);
+                      putSample(
+                          buffer,
+                          levelOffset,
+                          levelSize,
+                          i,
+                          j,
+                          terrain.height(),
+                          terrain.terrainType().ordinal(),
+                          terrain.temperature().ordinal());
+                    } else {
+                      putHighestFinerSample(
+                          buffer, finerLevelOffset, levelSize * 2, levelOffset, levelSize, i, j);
+                    }
+                  }
+                }
+              });
+    }
+
+    // write to a temporary file first so that a partially written pyramid is never opened
+    Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+    try (FileChannel channel =
+        FileChannel.open(
+            temporaryPath,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE)) {
+      while (buffer.hasRemaining()) channel.write(buffer);
+    }
+    Files.move(
+        temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    log.info(
+        "Built heightmap pyramid with {} levels of {} samples in {}ms",
+        levelCount,
+        size,
+        System.currentTimeMillis() - startedAt);
+    return open(path, seed)
+        .orElseThrow(() -> new IOException("Could not open built heightmap pyramid " + path));
+  }
+
+  private static long fileSize(int size, int levelCount) {
+    long fileSize = HEADER_SIZE;
+    for (int level = 0; level < levelCount; level++) {
+      long levelSize = size >> level;
+      fileSize += levelSize * levelSize * SAMPLE_SIZE;
+    }
+    return fileSize;
+  }
+
+  private static int[] levelOffsets(int size, int levelCount) {
+    int[] levelOffsets = new int[levelCount];
+    int offset = HEADER_SIZE;
+    for (int level = 0; level < levelCount; level++) {
+      levelOffsets[level] = offset;
+      int levelSize = size >> level;
+      offset += levelSize * levelSize * SAMPLE_SIZE;
+    }
+    return levelOffsets;
+  }
+
+  private static void putSample(
+      ByteBuffer buffer,
+      int levelOffset,
+      int levelSize,
+      int i,
+      int j,
+      float height,
+      int terrainTypeOrdinal,
+      int temperatureOrdinal) {
+    int index = i * levelSize + j;
+    int sampleCount = levelSize * levelSize;
+    buffer.putFloat(levelOffset + index * 4, height);
+    buffer.put(levelOffset + sampleCount * 4 + index, (byte) terrainTypeOrdinal);
+    buffer.put(levelOffset + sampleCount * 5 + index, (byte) temperatureOrdinal);
+  }
+
+  private static void putHighestFinerSample(
+      ByteBuffer buffer,
+      int finerLevelOffset,
+      int finerLevelSize,
+      int levelOffset,
+      int levelSize,
+      int i,
+      int j) {
+    int finerSampleCount = finerLevelSize * finerLevelSize;
+    int highestIndex = -1;
+    float highestHeight = Float.NEGATIVE_INFINITY;
+    for (int di = 0; di < 2; di++) {
+      for (int dj = 0; dj < 2; dj++) {
+        int index = (i * 2 + di) * finerLevelSize + j * 2 + dj;
+        float height = buffer.getFloat(finerLevelOffset + index * 4);
+        if (height > highestHeight) {
+          highestHeight = height;
+          highestIndex = index;
+        }
+      }
+    }
+
+    putSample(
+        buffer,
+        levelOffset,
+        levelSize,
+        i,
+        j,
+        highestHeight,
+        buffer.get(finerLevelOffset + finerSampleCount * 4 + highestIndex),
+        buffer.get(finerLevelOffset + finerSampleCount * 5 + highestIndex));
+  }
+
+  /** @return whether the world column is covered by the pyramid */
+  public boolean contains(int x, int z) {
+    return x >= originX && z >= originZ && x < originX + size && z < originZ + size;
+  }
+
+  /** @return the surface height in [-1, 1] like {@link Terrain#height()} */
+  public float heightAt(int level, int x, int z) {
+    return buffer.getFloat(levelOffsets[level] + sampleIndex(level, x, z) * 4);
+  }
+
+  public TerrainType terrainTypeAt(int level, int x, int z) {
+    int levelSize = size >> level;
+    int offset = levelOffsets[level] + levelSize * levelSize * 4;
+    return terrainTypes[buffer.get(offset + sampleIndex(level, x, z))];
+  }
+
+  public Temperature temperatureAt(int level, int x, int z) {
+    int levelSize = size >> level;
+    int offset = levelOffsets[level] + levelSize * levelSize * 5;
+    return temperatures[buffer.get(offset + sampleIndex(level, x, z))];
+  }
+
+  private int sampleIndex(int level, int x, int z) {
+    if (level < 0 || level >= levelCount)
+      throw new IllegalArgumentException(
+          "level must be in [0, " + levelCount + ") but got " + level);
+    if (!contains(x, z))
+      throw new IllegalArgumentException(
+          "location " + x + ", " + z + " is outside of the heightmap pyramid");
+    int levelSize = size >> level;
+    int i = (x - originX) >> level;
+    int j = (z - originZ) >> level;
+    return i * levelSize + j;
+  }
+}
@@ -0,0 +1,111 @@
+package blocks;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * {@link HeightmapPyramid Heightmap pyramids} of {@link #TILE_SIZE}x{@link #TILE_SIZE} block
+ * columns keyed by world position, so that the covered area grows with the explored world.
+ *
+ * <p>Tiles are requested when terrain in them is attached to the chunk grid or when they are
+ * looked up. Stored tiles are opened right away, missing ones are built in the background and are
+ * absent until then.
+ */
+@Slf4j
+public class HeightmapTiles implements ChunkGrid.ChunkListener {
+  public static final int TILE_SIZE = 256;
+
+  private final TerrainGenerator terrainGenerator;
+  private final long seed;
+  private final Path directory;
+  private final int levelCount;
+  private final ExecutorService executorService;
+
+  private final Map<Long, HeightmapPyramid> tiles = new ConcurrentHashMap<>();
+  // tiles that are built or being built, failed builds aren't retried
+  private final Set<Long> requestedTiles = ConcurrentHashMap.newKeySet();
+
+  /** @param levelCount levels of detail per tile, 2^(levelCount - 1) must divide the tile size */
+  public HeightmapTiles(
+      @NonNull TerrainGenerator terrainGenerator,
+      long seed,
+      @NonNull Path directory,
+      int levelCount,
+      @NonNull ExecutorService executorService)
+      throws IOException {
+    if (levelCount < 1 || TILE_SIZE % (1 << (levelCount - 1)) != 0)
+      throw new IllegalArgumentException(
+          "2^(levelCount - 1) must divide " + TILE_SIZE + " but got level count " + levelCount);
+
+    this.terrainGenerator = terrainGenerator;
+    this.seed = seed;
+    this.directory = directory;
+    this.levelCount = levelCount;
+    this.executorService = executorService;
+    Files.createDirectories(directory);
+  }
+
+  /**
+   * Requests the tile if it hasn't been requested yet.
+   *
+   * @return the tile that covers the world column, empty while it is being built
+   */
+  public Optional<HeightmapPyramid> tileAt(int x, int z) {
+    int tileX = Math.floorDiv(x, TILE_SIZE);
+    int tileZ = Math.floorDiv(z, TILE_SIZE);
+    long tileKey = tileKey(tileX, tileZ);
+    HeightmapPyramid tile = tiles.get(tileKey);
+    if (tile == null && requestedTiles.add(tileKey)) tile = request(tileX, tileZ, tileKey);
+    return Optional.ofNullable(tile);
+  }
+
+  // opens the stored tile or starts building it, null if it isn't stored
+  private HeightmapPyramid request(int tileX, int tileZ, long tileKey) {
+    Path path = directory.resolve("t." + tileX + "." + tileZ + ".bin");
+    Optional<HeightmapPyramid> storedTile = HeightmapPyramid.open(path, seed);
+    if (storedTile.isPresent()) {
+      tiles.put(tileKey, storedTile.get());
+      return storedTile.get();
+    }
+
+    executorService.submit(
+        () -> {
+          try {
+            tiles.put(
+                tileKey,
+                HeightmapPyramid.build(
+                    terrainGenerator,
+                    seed,
+                    path,
+                    tileX * TILE_SIZE,
+                    tileZ * TILE_SIZE,
+                    TILE_SIZE,
+                    levelCount));
+          } catch (IOException e) {
+            log.warn("Could not build heightmap tile {}, {}", tileX, tileZ, e);
+          }
+        });
+    return null;
+  }
+
+  private static long tileKey(int tileX, int tileZ) {
+    return ((long) tileX << 32) | (tileZ & 0xFFFFFFFFL);
+  }
+
+  @Override
+  public void chunkAttached(Chunk chunk) {
+    tileAt(chunk.getLocation().x * chunk.getSize().x, chunk.getLocation().z * chunk.getSize().z);
+  }
+
+  @Override
+  public void chunkDetached(Chunk chunk) {}
+}
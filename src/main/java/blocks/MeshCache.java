@@ -0,0 +1,216 @@
+package blocks;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.util.BufferUtils;
+import com.simsilica.mathd.Vec3i;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Disk cache of finished chunk meshes, so that chunks coming back into the grid don't have to be
+ * meshed again.
+ *
+ * <p>Entries are stored per chunk location and level of detail together with the mesher version
+ * and a hash of the blocks the mesher has read. An entry whose version or hash doesn't match is a
+ * miss and gets overwritten. Vertex data is stored in little endian order and copied into new
+ * buffers for the meshes: jME may write to mesh buffers, which must never reach the cache file, and
+ * the store reuses the space of replaced entries.
+ *
+ * <p>Entries are encoded on the meshing thread and written on a dedicated I/O thread every {@link
+ * #FLUSH_INTERVAL_MILLIS}, with one flush of the stores per batch. Entries that haven't been
+ * written yet are read from the queue. Entries written after {@link #close()} are dropped.
+ *
+ * <p>Layout: mesher version int, content hash long, mesh count int and per mesh the block, vertex
+ * count int, index count int, positions, texture coordinates, normals, colors and indexes.
+ */
+@Slf4j
+public class MeshCache {
+  private static final int HEADER_SIZE = 16;
+  private static final long FLUSH_INTERVAL_MILLIS = 500;
+
+  // indexed by level of detail
+  private final List<RegionFileStore> meshStores;
+
+  // entries are removed after they have been written, so readers never miss entries in between
+  private final Map<CacheKey, ByteBuffer> pendingWrites = new ConcurrentHashMap<>();
+  private final Thread thread;
+  private volatile boolean isClosed = false;
+
+  /** @param meshStores one store per level of detail */
+  public MeshCache(@NonNull List<RegionFileStore> meshStores) {
+    this.meshStores = meshStores;
+
+    thread = new Thread(this::run, "mesh-cache-writer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public Optional<Map<Block, Mesh>> read(
+      @NonNull Vec3i chunkLocation, int lod, int mesherVersion, long contentHash) {
+    try {
+      ByteBuffer pendingData = pendingWrites.get(new CacheKey(chunkLocation, lod));
+      Optional<ByteBuffer> storedData =
+          pendingData != null
+              ? Optional.of(pendingData.duplicate())
+              : meshStores.get(lod).read(chunkLocation.x, chunkLocation.y, chunkLocation.z);
+      if (storedData.isEmpty()) return Optional.empty();
+
+      ByteBuffer buffer = storedData.get().order(ByteOrder.LITTLE_ENDIAN);
+      if (buffer.getInt() != mesherVersion || buffer.getLong() != contentHash) {
+        return Optional.empty();
+      }
+
+      int meshCount = buffer.getInt();
+      Map<Block, Mesh> blockToMesh = new LinkedHashMap<>();
+      for (int i = 0; i < meshCount; i++) {
+        Block block = ChunkCodec.getBlock(buffer);
+        int vertexCount = buffer.getInt();
+        int indexCount = buffer.getInt();
+
+        Mesh mesh = new Mesh();
+        mesh.setBuffer(VertexBuffer.Type.Position, 3, copyFloats(buffer, vertexCount * 3));
+        mesh.setBuffer(VertexBuffer.Type.TexCoord, 2, copyFloats(buffer, vertexCount * 2));
+        mesh.setBuffer(VertexBuffer.Type.Normal, 3, copyFloats(buffer, vertexCount * 3));
+        mesh.setBuffer(VertexBuffer.Type.Color, 4, copyFloats(buffer, vertexCount * 4));
+        mesh.setBuffer(VertexBuffer.Type.Index, 3, copyInts(buffer, indexCount));
+        mesh.updateBound();
+        blockToMesh.put(block, mesh);
+      }
+      return Optional.of(blockToMesh);
+    } catch (IOException | RuntimeException e) {
+      log.warn("Could not read cached meshes of chunk at {}, meshing it instead", chunkLocation, e);
+      return Optional.empty();
+    }
+  }
+
+  /** Queues the meshes for writing, replacing meshes that have been queued for the same chunk. */
+  public void write(
+      @NonNull Vec3i chunkLocation,
+      int lod,
+      int mesherVersion,
+      long contentHash,
+      @NonNull Map<Block, Mesh> blockToMesh) {
+    if (isClosed) return;
+
+    int size = HEADER_SIZE;
+    for (Mesh mesh : blockToMesh.values()) {
+      size += ChunkCodec.BLOCK_SIZE + 8 + (mesh.getVertexCount() * 12 + indexCount(mesh)) * 4;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(mesherVersion);
+    buffer.putLong(contentHash);
+    buffer.putInt(blockToMesh.size());
+    for (Map.Entry<Block, Mesh> entry : blockToMesh.entrySet()) {
+      Mesh mesh = entry.getValue();
+      ChunkCodec.putBlock(buffer, entry.getKey());
+      buffer.putInt(mesh.getVertexCount());
+      buffer.putInt(indexCount(mesh));
+      putFloats(buffer, mesh.getFloatBuffer(VertexBuffer.Type.Position));
+      putFloats(buffer, mesh.getFloatBuffer(VertexBuffer.Type.TexCoord));
+      putFloats(buffer, mesh.getFloatBuffer(VertexBuffer.Type.Normal));
+      putFloats(buffer, mesh.getFloatBuffer(VertexBuffer.Type.Color));
+      putInts(buffer, (IntBuffer) mesh.getBuffer(VertexBuffer.Type.Index).getData());
+    }
+
+    pendingWrites.put(new CacheKey(chunkLocation, lod), buffer.flip());
+  }
+
+  private void run() {
+    while (!isClosed) {
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS));
+      // the final flush happens in close()
+      if (isClosed) return;
+      flush();
+    }
+  }
+
+  private synchronized void flush() {
+    if (pendingWrites.isEmpty()) return;
+
+    for (Map.Entry<CacheKey, ByteBuffer> entry : pendingWrites.entrySet()) {
+      Vec3i chunkLocation = entry.getKey().chunkLocation();
+      try {
+        meshStores
+            .get(entry.getKey().lod())
+            .write(
+                chunkLocation.x, chunkLocation.y, chunkLocation.z, entry.getValue().duplicate());
+      } catch (IOException | RuntimeException e) {
+        log.warn("Could not cache meshes of chunk at {}", chunkLocation, e);
+      }
+      // keeps the entry if it has been written again in the meantime
+      pendingWrites.remove(entry.getKey(), entry.getValue());
+    }
+
+    for (RegionFileStore meshStore : meshStores) {
+      try {
+        meshStore.flush();
+      } catch (IOException e) {
+        log.warn("Could not flush the mesh cache", e);
+      }
+    }
+  }
+
+  /** Stops the I/O thread after writing everything that has been queued so far. */
+  public void close() {
+    if (isClosed) return;
+    isClosed = true;
+    LockSupport.unpark(thread);
+
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+  }
+
+  private record CacheKey(Vec3i chunkLocation, int lod) {}
+
+  private static int indexCount(Mesh mesh) {
+    return mesh.getBuffer(VertexBuffer.Type.Index).getData().limit();
+  }
+
+  // OpenGL requires direct buffers in native order
+  private static FloatBuffer copyFloats(ByteBuffer buffer, int count) {
+    FloatBuffer copy = BufferUtils.createFloatBuffer(count);
+    ByteBuffer source = buffer.slice(buffer.position(), count * 4).order(ByteOrder.LITTLE_ENDIAN);
+    copy.put(source.asFloatBuffer());
+    buffer.position(buffer.position() + count * 4);
+    return copy.flip();
+  }
+
+  private static IntBuffer copyInts(ByteBuffer buffer, int count) {
+    IntBuffer copy = BufferUtils.createIntBuffer(count);
+    ByteBuffer source = buffer.slice(buffer.position(), count * 4).order(ByteOrder.LITTLE_ENDIAN);
+    copy.put(source.asIntBuffer());
+    buffer.position(buffer.position() + count * 4);
+    return copy.flip();
+  }
+
+  private static void putFloats(ByteBuffer buffer, FloatBuffer floats) {
+    FloatBuffer source = floats.duplicate().rewind();
+    buffer.asFloatBuffer().put(source);
+    buffer.position(buffer.position() + source.limit() * 4);
+  }
+
+  private static void putInts(ByteBuffer buffer, IntBuffer ints) {
+    IntBuffer source = ints.duplicate().rewind();
+    buffer.asIntBuffer().put(source);
+    buffer.position(buffer.position() + source.limit() * 4);
+  }
+}
@@ -0,0 +1,12 @@
+package blocks;
+
+/** How the {@link ChunkSaver} stores chunks. */
+public enum PersistenceMode {
+  /** Every generated chunk is stored with all its blocks. */
+  FULL,
+  /**
+   * Only modified chunks are stored, as differences to the blocks generated from the seed. Chunks
+   * with dense modifications are stored with all their blocks.
+   */
+  DELTA
+}
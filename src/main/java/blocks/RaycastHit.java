@@ -0,0 +1,29 @@
+package blocks;
+
+import lombok.ToString;
+
+/**
+ * Result of a raycast through the block grid, see {@link ChunkGrid#raycast(float, float, float,
+ * float, float, float, float, RaycastHit)}. Can be reused so that raycasts don't allocate.
+ */
+@ToString
+public class RaycastHit {
+  /** whether a block has been hit, the other fields are only valid if so */
+  public boolean isHit;
+
+  public Block block;
+  public int blockX;
+  public int blockY;
+  public int blockZ;
+
+  /** face of the block through which the ray entered it, null if the ray started inside it */
+  public Face face;
+
+  /** distance from the ray origin to the hit location */
+  public float distance;
+
+  // location where the ray hit the block
+  public float x;
+  public float y;
+  public float z;
+}
@@ -0,0 +1,337 @@
+package blocks;
+
+import com.jme3.material.Material;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.queue.RenderQueue;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.util.BufferUtils;
+import com.simsilica.mathd.Vec3i;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Merges the chunk meshes of horizontal regions of NxN chunks into one mesh per material, so that
+ * a region needs a few draw calls instead of one per chunk and block.
+ *
+ * <p>Batches are built on a background thread once a region hasn't changed for {@link
+ * #REBUILD_DELAY_MILLIS}. While a region's batch is outdated the {@link ChunkGrid} shows the
+ * individual chunk nodes instead. The mesh data of the chunks is snapshotted on the render thread,
+ * so that the merging doesn't touch the scene graph. All methods except the merging must be called
+ * from the render thread.
+ *
+ * <p>Batches duplicate the meshes of their chunks, which are kept for when the region changes, see
+ * {@link #getBatchMemoryUsage()}.
+ */
+@Slf4j
+public class RegionBatcher {
+  private static final long REBUILD_DELAY_MILLIS = 500;
+  private static final long REPORT_INTERVAL_MILLIS = 10000;
+
+  private final int regionSize;
+  private final ExecutorService batchExecutorService;
+  @Getter private final Node node = new Node("regionBatches");
+
+  private final Map<Long, Region> regions = new HashMap<>();
+  private final ConcurrentLinkedQueue<Batch> finishedBatches = new ConcurrentLinkedQueue<>();
+  private long lastReportAt = System.currentTimeMillis();
+  /** bytes of vertex data of the batches, on top of the chunk meshes */
+  @Getter private long batchMemoryUsage = 0;
+
+  /** @param regionSize number of chunks per side of a region */
+  public RegionBatcher(int regionSize, @NonNull ExecutorService batchExecutorService) {
+    if (regionSize < 1)
+      throw new IllegalArgumentException("region size must be > 0 but got " + regionSize);
+    this.regionSize = regionSize;
+    this.batchExecutorService = batchExecutorService;
+  }
+
+  /** @return the region of the chunk, which has to be passed to {@link #chunkDetached} */
+  public Region chunkAttached(@NonNull Chunk chunk, @NonNull Node chunkNode) {
+    Vec3i location = chunk.getLocation();
+    long regionKey =
+        ChunkIndex.key(
+            Math.floorDiv(location.x, regionSize),
+            location.y,
+            Math.floorDiv(location.z, regionSize));
+    Region region = regions.computeIfAbsent(regionKey, Region::new);
+    region.chunkNodes.put(chunk, chunkNode);
+    region.changed();
+    return region;
+  }
+
+  public void chunkDetached(@NonNull Region region, @NonNull Chunk chunk) {
+    if (region.chunkNodes.remove(chunk) == null) return;
+    region.changed();
+    if (region.chunkNodes.isEmpty()) {
+      regions.remove(region.key);
+      if (region.batchNode != null) region.batchNode.removeFromParent();
+      batchMemoryUsage -= region.batchMemoryUsage;
+    }
+  }
+
+  /** Schedules outdated batches and attaches finished ones. */
+  public void update() {
+    long now = System.currentTimeMillis();
+
+    for (Region region : regions.values()) {
+      if (region.isBatched()
+          || region.isBuildScheduled
+          || now < region.changedAt + REBUILD_DELAY_MILLIS) continue;
+
+      region.isBuildScheduled = true;
+      int version = region.version;
+      List<MeshPart> meshParts = snapshotMeshParts(region.chunkNodes.values());
+      batchExecutorService.submit(
+          () -> {
+            Node batchNode = mergeMeshParts(meshParts);
+            finishedBatches.add(new Batch(region, version, batchNode, memoryUsage(batchNode)));
+          });
+    }
+
+    for (Batch batch = finishedBatches.poll(); batch != null; batch = finishedBatches.poll()) {
+      Region region = batch.region;
+      region.isBuildScheduled = false;
+      // the region has changed or has been removed in the meantime
+      if (batch.version != region.version || regions.get(region.key) != region) continue;
+
+      if (region.batchNode != null) region.batchNode.removeFromParent();
+      region.batchNode = batch.node;
+      region.batchedVersion = batch.version;
+      batchMemoryUsage += batch.memoryUsage - region.batchMemoryUsage;
+      region.batchMemoryUsage = batch.memoryUsage;
+      node.attachChild(batch.node);
+    }
+
+    report(now);
+  }
+
+  /**
+   * Shows the batches of regions with visible chunks, see {@link
+   * Region#markVisible(RenderQueue.ShadowMode)}.
+   */
+  public void applyVisibility() {
+    for (Region region : regions.values()) {
+      if (region.batchNode != null) {
+        region.batchNode.setCullHint(
+            region.isBatched() && region.isVisible
+                ? Spatial.CullHint.Inherit
+                : Spatial.CullHint.Always);
+        region.batchNode.setShadowMode(region.shadowMode);
+      }
+      region.isVisible = false;
+      region.shadowMode = RenderQueue.ShadowMode.Off;
+    }
+  }
+
+  // the ancestors of chunk nodes within the grid aren't transformed, so the local translation of
+  // chunk nodes is in world space
+  private static List<MeshPart> snapshotMeshParts(Collection<Node> chunkNodes) {
+    List<MeshPart> meshParts = new ArrayList<>();
+    for (Node chunkNode : chunkNodes) {
+      Vector3f translation = chunkNode.getLocalTranslation().clone();
+      for (Spatial child : chunkNode.getChildren()) {
+        Geometry geometry = (Geometry) child;
+        Mesh mesh = geometry.getMesh();
+        FloatBuffer blockTypes = mesh.getFloatBuffer(VertexBuffer.Type.TexCoord2);
+        meshParts.add(
+            new MeshPart(
+                geometry.getMaterial(),
+                geometry.getQueueBucket(),
+                translation,
+                mesh.getVertexCount(),
+                mesh.getFloatBuffer(VertexBuffer.Type.Position).duplicate().rewind(),
+                mesh.getFloatBuffer(VertexBuffer.Type.TexCoord).duplicate().rewind(),
+                mesh.getFloatBuffer(VertexBuffer.Type.Normal).duplicate().rewind(),
+                mesh.getFloatBuffer(VertexBuffer.Type.Color).duplicate().rewind(),
+                blockTypes != null ? blockTypes.duplicate().rewind() : null,
+                ((IntBuffer) mesh.getBuffer(VertexBuffer.Type.Index).getData())
+                    .duplicate()
+                    .rewind()));
+      }
+    }
+    return meshParts;
+  }
+
+  private static Node mergeMeshParts(List<MeshPart> meshParts) {
+    Map<Material, List<MeshPart>> meshPartsByMaterial = new LinkedHashMap<>();
+    for (MeshPart meshPart : meshParts) {
+      meshPartsByMaterial
+          .computeIfAbsent(meshPart.material, material -> new ArrayList<>())
+          .add(meshPart);
+    }
+
+    Node batchNode = new Node("regionBatch");
+    for (List<MeshPart> materialMeshParts : meshPartsByMaterial.values()) {
+      batchNode.attachChild(mergeGeometries(materialMeshParts));
+    }
+    return batchNode;
+  }
+
+  private static Geometry mergeGeometries(List<MeshPart> meshParts) {
+    int vertexCount = 0;
+    int indexCount = 0;
+    for (MeshPart meshPart : meshParts) {
+      vertexCount += meshPart.vertexCount;
+      indexCount += meshPart.indexes.remaining();
+    }
+
+    FloatBuffer positions = BufferUtils.createFloatBuffer(vertexCount * 3);
+    FloatBuffer textureCoordinates = BufferUtils.createFloatBuffer(vertexCount * 2);
+    FloatBuffer normals = BufferUtils.createFloatBuffer(vertexCount * 3);
+    FloatBuffer colors = BufferUtils.createFloatBuffer(vertexCount * 4);
+    // block types of meshes with several blocks, see BlockMaterial.usesVertexBlockTypes()
+    boolean hasBlockTypes = meshParts.get(0).blockTypes != null;
+    FloatBuffer blockTypes = hasBlockTypes ? BufferUtils.createFloatBuffer(vertexCount * 2) : null;
+    IntBuffer indexes = BufferUtils.createIntBuffer(indexCount);
+
+    int indexOffset = 0;
+    for (MeshPart meshPart : meshParts) {
+      Vector3f translation = meshPart.translation;
+      FloatBuffer meshPositions = meshPart.positions;
+      while (meshPositions.hasRemaining()) {
+        positions.put(meshPositions.get() + translation.x);
+        positions.put(meshPositions.get() + translation.y);
+        positions.put(meshPositions.get() + translation.z);
+      }
+      textureCoordinates.put(meshPart.textureCoordinates);
+      normals.put(meshPart.normals);
+      colors.put(meshPart.colors);
+      if (hasBlockTypes) blockTypes.put(meshPart.blockTypes);
+
+      IntBuffer meshIndexes = meshPart.indexes;
+      while (meshIndexes.hasRemaining()) indexes.put(meshIndexes.get() + indexOffset);
+      indexOffset += meshPart.vertexCount;
+    }
+
+    Mesh mesh = new Mesh();
+    mesh.setBuffer(VertexBuffer.Type.Position, 3, positions.flip());
+    mesh.setBuffer(VertexBuffer.Type.TexCoord, 2, textureCoordinates.flip());
+    mesh.setBuffer(VertexBuffer.Type.Normal, 3, normals.flip());
+    mesh.setBuffer(VertexBuffer.Type.Color, 4, colors.flip());
+    if (hasBlockTypes) mesh.setBuffer(VertexBuffer.Type.TexCoord2, 2, blockTypes.flip());
+    mesh.setBuffer(VertexBuffer.Type.Index, 3, indexes.flip());
+    mesh.updateBound();
+
+    MeshPart first = meshParts.get(0);
+    Geometry batch = new Geometry("regionBatch " + first.material.getName(), mesh);
+    batch.setMaterial(first.material);
+    // set on the batch node, see applyVisibility()
+    batch.setShadowMode(RenderQueue.ShadowMode.Inherit);
+    batch.setQueueBucket(first.queueBucket);
+    return batch;
+  }
+
+  // same as the mesh memory usage of chunks
+  private static long memoryUsage(Node batchNode) {
+    long memoryUsage = 0;
+    for (Spatial child : batchNode.getChildren()) {
+      for (VertexBuffer vertexBuffer : ((Geometry) child).getMesh().getBufferList()) {
+        memoryUsage +=
+            (long) vertexBuffer.getData().capacity() * vertexBuffer.getFormat().getComponentSize();
+      }
+    }
+    return memoryUsage;
+  }
+
+  private void report(long now) {
+    if (now < lastReportAt + REPORT_INTERVAL_MILLIS) return;
+    lastReportAt = now;
+
+    int batchedRegionCount = 0;
+    int batchedChunkCount = 0;
+    int batchGeometryCount = 0;
+    for (Region region : regions.values()) {
+      if (!region.isBatched()) continue;
+      batchedRegionCount++;
+      batchedChunkCount += region.chunkNodes.size();
+      batchGeometryCount += region.batchNode.getQuantity();
+    }
+    log.info(
+        "Region batching: {} of {} regions batched, {} chunk nodes replaced by {} geometries, {}MB",
+        batchedRegionCount,
+        regions.size(),
+        batchedChunkCount,
+        batchGeometryCount,
+        batchMemoryUsage / (1024 * 1024));
+  }
+
+  /** NxN chunks on the same chunk layer. */
+  public static class Region {
+    private final long key;
+    // chunks use value based equality, but the same chunk can only be attached once
+    private final Map<Chunk, Node> chunkNodes = new IdentityHashMap<>();
+    private int version = 0;
+    private long changedAt = 0;
+    private boolean isBuildScheduled = false;
+    private Node batchNode;
+    private int batchedVersion = -1;
+    private long batchMemoryUsage = 0;
+    private boolean isVisible = false;
+    private RenderQueue.ShadowMode shadowMode = RenderQueue.ShadowMode.Off;
+
+    private Region(long key) {
+      this.key = key;
+    }
+
+    private void changed() {
+      version++;
+      changedAt = System.currentTimeMillis();
+    }
+
+    /** @return whether the batch matches the chunks, which then don't have to be shown */
+    public boolean isBatched() {
+      return batchNode != null && batchedVersion == version;
+    }
+
+    /**
+     * Shows the batch during the next {@link #applyVisibility()}. The batch gets the
+     * strongest shadow mode of its visible chunks.
+     */
+    public void markVisible(@NonNull RenderQueue.ShadowMode chunkShadowMode) {
+      isVisible = true;
+      if (shadowModeRank(chunkShadowMode) > shadowModeRank(shadowMode)) {
+        shadowMode = chunkShadowMode;
+      }
+    }
+
+    private static int shadowModeRank(RenderQueue.ShadowMode shadowMode) {
+      return switch (shadowMode) {
+        case CastAndReceive -> 3;
+        case Cast, Receive -> 2;
+        case Off, Inherit -> 1;
+      };
+    }
+  }
+
+  // the mesh data of a chunk geometry, read on the render thread, positions are in chunk space
+  private record MeshPart(
+      Material material,
+      RenderQueue.Bucket queueBucket,
+      Vector3f translation,
+      int vertexCount,
+      FloatBuffer positions,
+      FloatBuffer textureCoordinates,
+      FloatBuffer normals,
+      FloatBuffer colors,
+      FloatBuffer blockTypes,
+      IntBuffer indexes) {}
+
+  private record Batch(Region region, int version, Node node, long memoryUsage) {}
+}
@@ -0,0 +1,272 @@
+package blocks;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores binary chunk data in region files of {@link #REGION_SIZE}x{@link #REGION_SIZE} chunk
+ * columns. Each file starts with an offset table with one entry per chunk, followed by the chunk
+ * data in runs of {@link #SECTOR_SIZE} byte sectors.
+ *
+ * <p>Rewritten chunks go to free sectors and release their old run on the next {@link #flush()},
+ * so that the space of old copies is reused and a crash before a flush leaves the previous copy
+ * intact. A flush forces the data of all writes since the last flush to disk before the offset
+ * table points at it, so that a batch of writes costs two forces. Reads go through read-only memory
+ * mappings of {@link #SEGMENT_SECTORS} sector segments, which are remapped one at a time as the
+ * file grows.
+ */
+@Slf4j
+public class RegionFileStore implements Closeable {
+  public static final int REGION_SIZE = 32;
+
+  static final int SECTOR_SIZE = 4096;
+  // 1 GiB, runs never cross segment borders so that each run is in a single mapping
+  static final int SEGMENT_SECTORS = 1 << 18;
+  // 16 MiB, the file grows in these steps so that mappings don't have to follow every write
+  private static final int GROWTH_SECTORS = 1 << 12;
+
+  // 4 bytes sector offset + 4 bytes length, sector offset 0 means not stored
+  private static final int HEADER_ENTRY_SIZE = 8;
+
+  private final Path directory;
+  private final int regionHeight;
+  private final Map<Long, RegionFile> regionFiles = new ConcurrentHashMap<>();
+
+  /**
+   * @param regionHeight number of chunks stacked on top of each other, chunks with a y location
+   *     outside of [0, regionHeight) can't be stored
+   */
+  public RegionFileStore(@NonNull Path directory, int regionHeight) throws IOException {
+    this.directory = directory;
+    this.regionHeight = regionHeight;
+    Files.createDirectories(directory);
+  }
+
+  /** @return a copy of the stored chunk data */
+  public Optional<ByteBuffer> read(int chunkX, int chunkY, int chunkZ) throws IOException {
+    if (chunkY < 0 || chunkY >= regionHeight) return Optional.empty();
+    return regionFile(chunkX, chunkZ).read(slot(chunkX, chunkY, chunkZ));
+  }
+
+  public void write(int chunkX, int chunkY, int chunkZ, @NonNull ByteBuffer data)
+      throws IOException {
+    if (chunkY < 0 || chunkY >= regionHeight) return;
+    regionFile(chunkX, chunkZ).write(slot(chunkX, chunkY, chunkZ), data);
+  }
+
+  /** Makes all writes durable and releases the runs they replaced. */
+  public void flush() throws IOException {
+    for (RegionFile regionFile : regionFiles.values()) regionFile.flush();
+  }
+
+  public static long regionKey(int chunkX, int chunkZ) {
+    return ((long) Math.floorDiv(chunkX, REGION_SIZE) << 32)
+        | (Math.floorDiv(chunkZ, REGION_SIZE) & 0xFFFFFFFFL);
+  }
+
+  private int slot(int chunkX, int chunkY, int chunkZ) {
+    int localX = Math.floorMod(chunkX, REGION_SIZE);
+    int localZ = Math.floorMod(chunkZ, REGION_SIZE);
+    return (localX * REGION_SIZE + localZ) * regionHeight + chunkY;
+  }
+
+  private RegionFile regionFile(int chunkX, int chunkZ) throws IOException {
+    long regionKey = regionKey(chunkX, chunkZ);
+    RegionFile regionFile = regionFiles.get(regionKey);
+    if (regionFile != null) return regionFile;
+
+    synchronized (regionFiles) {
+      regionFile = regionFiles.get(regionKey);
+      if (regionFile == null) {
+        Path path =
+            directory.resolve(
+                "r." + Math.floorDiv(chunkX, REGION_SIZE) + "." + Math.floorDiv(chunkZ, REGION_SIZE)
+                    + ".bin");
+        regionFile = new RegionFile(path, REGION_SIZE * REGION_SIZE * regionHeight);
+        regionFiles.put(regionKey, regionFile);
+      }
+      return regionFile;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (regionFiles) {
+      for (RegionFile regionFile : regionFiles.values()) regionFile.close();
+      regionFiles.clear();
+    }
+  }
+
+  static int sectorCount(int length) {
+    return (length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+  }
+
+  private static class RegionFile implements Closeable {
+    private final FileChannel channel;
+    private final int headerSectors;
+    // the offset table, written through the channel on flush after the data it points at
+    private final int[] sectorOffsets;
+    private final int[] lengths;
+    private final BitSet usedSectors = new BitSet();
+    // written since the last flush, the offset table on disk still points at their previous runs
+    private final BitSet dirtySlots = new BitSet();
+    // previous runs of the dirty slots, still used until the offset table no longer points at them
+    private final BitSet replacedSectors = new BitSet();
+    private long fileSectorCount;
+    // indexed by segment, null until read from, remapped when the file has grown past them
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+    RegionFile(Path path, int slotCount) throws IOException {
+      channel =
+          FileChannel.open(
+              path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      headerSectors = sectorCount(slotCount * HEADER_ENTRY_SIZE);
+      sectorOffsets = new int[slotCount];
+      lengths = new int[slotCount];
+      usedSectors.set(0, headerSectors);
+
+      long size = channel.size();
+      if (size < (long) headerSectors * SECTOR_SIZE) {
+        grow(headerSectors);
+      } else {
+        fileSectorCount = size / SECTOR_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(slotCount * HEADER_ENTRY_SIZE);
+        while (header.hasRemaining()) {
+          if (channel.read(header, header.position()) < 0) break;
+        }
+        header.flip();
+        for (int slot = 0; slot < slotCount; slot++) {
+          int sectorOffset = header.getInt();
+          int length = header.getInt();
+          boolean isValid =
+              sectorOffset >= headerSectors
+                  && length > 0
+                  && sectorOffset + sectorCount(length) <= fileSectorCount;
+          if (sectorOffset != 0 && !isValid) {
+            log.warn("Ignoring invalid entry {} of region file {}", slot, path);
+            continue;
+          }
+          if (!isValid) continue;
+          sectorOffsets[slot] = sectorOffset;
+          lengths[slot] = length;
+          usedSectors.set(sectorOffset, sectorOffset + sectorCount(length));
+        }
+      }
+    }
+
+    synchronized Optional<ByteBuffer> read(int slot) throws IOException {
+      int sectorOffset = sectorOffsets[slot];
+      if (sectorOffset == 0) return Optional.empty();
+
+      int length = lengths[slot];
+      int segmentIndex = sectorOffset / SEGMENT_SECTORS;
+      int offsetInSegment = (sectorOffset % SEGMENT_SECTORS) * SECTOR_SIZE;
+      MappedByteBuffer segment = segment(segmentIndex, offsetInSegment + length);
+      ByteBuffer data = ByteBuffer.allocate(length);
+      data.put(0, segment, offsetInSegment, length);
+      return Optional.of(data);
+    }
+
+    // maps the segment up to the end of the file if the current mapping is shorter than required
+    private MappedByteBuffer segment(int segmentIndex, int requiredLength) throws IOException {
+      while (segments.size() <= segmentIndex) segments.add(null);
+      MappedByteBuffer segment = segments.get(segmentIndex);
+      if (segment == null || segment.capacity() < requiredLength) {
+        long start = (long) segmentIndex * SEGMENT_SECTORS * SECTOR_SIZE;
+        long length = Math.min((long) SEGMENT_SECTORS * SECTOR_SIZE, channel.size() - start);
+        segment = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        segments.set(segmentIndex, segment);
+      }
+      return segment;
+    }
+
+    synchronized void write(int slot, ByteBuffer data) throws IOException {
+      int length = data.remaining();
+      if (length == 0) throw new IllegalArgumentException("data must not be empty");
+      int sectors = sectorCount(length);
+      if (sectors > SEGMENT_SECTORS)
+        throw new IllegalArgumentException("data must fit into a segment but got " + length);
+
+      int sectorOffset = allocate(sectors);
+      long position = (long) sectorOffset * SECTOR_SIZE;
+      while (data.hasRemaining()) position += channel.write(data, position);
+
+      int previousSectorOffset = sectorOffsets[slot];
+      if (previousSectorOffset != 0) {
+        replacedSectors.set(
+            previousSectorOffset, previousSectorOffset + sectorCount(lengths[slot]));
+      }
+      sectorOffsets[slot] = sectorOffset;
+      lengths[slot] = length;
+      dirtySlots.set(slot);
+    }
+
+    synchronized void flush() throws IOException {
+      if (dirtySlots.isEmpty()) return;
+      // the entries must never point at data that isn't on disk yet
+      channel.force(false);
+
+      ByteBuffer entry = ByteBuffer.allocate(HEADER_ENTRY_SIZE);
+      for (int slot = dirtySlots.nextSetBit(0); slot >= 0; slot = dirtySlots.nextSetBit(slot + 1)) {
+        entry.clear();
+        entry.putInt(sectorOffsets[slot]).putInt(lengths[slot]).flip();
+        long entryPosition = (long) slot * HEADER_ENTRY_SIZE;
+        while (entry.hasRemaining()) entryPosition += channel.write(entry, entryPosition);
+      }
+      // the replaced runs can only be reused once no entry on disk points at them anymore
+      channel.force(false);
+
+      usedSectors.andNot(replacedSectors);
+      replacedSectors.clear();
+      dirtySlots.clear();
+    }
+
+    // first fit among the free sectors, the previous run of the slot is still marked as used
+    private int allocate(int sectors) throws IOException {
+      int start = usedSectors.nextClearBit(headerSectors);
+      while (true) {
+        int segmentEnd = (start / SEGMENT_SECTORS + 1) * SEGMENT_SECTORS;
+        if (start + sectors > segmentEnd) {
+          start = usedSectors.nextClearBit(segmentEnd);
+          continue;
+        }
+        int nextUsed = usedSectors.nextSetBit(start);
+        if (nextUsed == -1 || nextUsed >= start + sectors) break;
+        start = usedSectors.nextClearBit(nextUsed);
+      }
+
+      if (start + sectors > fileSectorCount) grow(start + sectors);
+      usedSectors.set(start, start + sectors);
+      return start;
+    }
+
+    private void grow(long minimumSectorCount) throws IOException {
+      long newSectorCount =
+          (minimumSectorCount + GROWTH_SECTORS - 1) / GROWTH_SECTORS * GROWTH_SECTORS;
+      // a single byte at the end extends the file, the rest reads as zeros
+      channel.write(ByteBuffer.allocate(1), newSectorCount * SECTOR_SIZE - 1);
+      fileSectorCount = newSectorCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      flush();
+      channel.close();
+    }
+  }
+}
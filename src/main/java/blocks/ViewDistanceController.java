@@ -0,0 +1,95 @@
+package blocks;
+
+import com.simsilica.mathd.Vec3i;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Grows or shrinks the horizontal size of a {@link ChunkGrid} depending on the work time of the
+ * frames, the backlog of pending chunk generations and the memory used by the chunks in the grid.
+ *
+ * <p>The work time is measured from {@link #frameStarted()} to {@link #frameRendered()}, so that
+ * waiting for vsync doesn't count. The memory of the grid chunks is compared to the chunk cache
+ * budget, see {@link ChunkGrid#getResidentChunkBytes()}, because the heap usage also counts
+ * garbage and the cache fills its budget in normal use. Must be used from the render thread.
+ */
+@Slf4j
+public class ViewDistanceController {
+  private static final long EVALUATION_INTERVAL_NANOS = 2_000_000_000L;
+  private static final int STEP = 2;
+
+  private static final float SHRINK_WORK_TIME_FACTOR = 1.2f;
+  private static final float GROW_WORK_TIME_FACTOR = 0.8f;
+  // share of the chunk cache budget used by the grid chunks, growing uses the predicted share
+  private static final float SHRINK_MEMORY_USAGE = 0.9f;
+  private static final float GROW_MEMORY_USAGE = 0.75f;
+
+  private final ChunkGrid chunkGrid;
+  private final int minGridWidth;
+  private final int maxGridWidth;
+  private final long targetFrameNanos;
+
+  private long frameStartedAt = 0;
+  private long lastEvaluationAt = System.nanoTime();
+  private long workNanos = 0;
+  private int frameCount = 0;
+
+  public ViewDistanceController(
+      @NonNull ChunkGrid chunkGrid, int minGridWidth, int maxGridWidth, int targetFps) {
+    if (minGridWidth < 1 || maxGridWidth < minGridWidth)
+      throw new IllegalArgumentException(
+          "grid widths must satisfy 0 < min <= max but got " + minGridWidth + ", " + maxGridWidth);
+
+    this.chunkGrid = chunkGrid;
+    this.minGridWidth = minGridWidth;
+    this.maxGridWidth = maxGridWidth;
+    this.targetFrameNanos = 1_000_000_000L / targetFps;
+  }
+
+  /** Must be called at the start of the frame update. */
+  public void frameStarted() {
+    frameStartedAt = System.nanoTime();
+  }
+
+  /** Must be called once the frame has been rendered, before the buffers are swapped. */
+  public void frameRendered() {
+    long now = System.nanoTime();
+    if (frameStartedAt == 0) return;
+    workNanos += now - frameStartedAt;
+    frameCount++;
+    if (now < lastEvaluationAt + EVALUATION_INTERVAL_NANOS) return;
+
+    long averageWorkNanos = workNanos / frameCount;
+    lastEvaluationAt = now;
+    workNanos = 0;
+    frameCount = 0;
+
+    float memoryUsage =
+        (float) chunkGrid.getResidentChunkBytes() / chunkGrid.getChunkCacheMaximumBytes();
+    int pendingChunkCount = chunkGrid.getPendingChunkCount();
+    Vec3i gridSize = chunkGrid.getGridSize();
+
+    int newWidth = gridSize.x;
+    if (averageWorkNanos > targetFrameNanos * SHRINK_WORK_TIME_FACTOR
+        || memoryUsage > SHRINK_MEMORY_USAGE) {
+      newWidth = Math.max(minGridWidth, gridSize.x - STEP);
+    } else if (averageWorkNanos < targetFrameNanos * GROW_WORK_TIME_FACTOR
+        && pendingChunkCount == 0) {
+      // only grow once the previous resize has been fully loaded
+      int grownWidth = Math.min(maxGridWidth, gridSize.x + STEP);
+      float grownMemoryUsage = memoryUsage * grownWidth * grownWidth / (gridSize.x * gridSize.z);
+      if (grownMemoryUsage < GROW_MEMORY_USAGE) newWidth = grownWidth;
+    }
+
+    if (newWidth != gridSize.x) {
+      log.info(
+          "Resizing grid from {} to {} (work time {}ms, memory usage {}%, {} pending chunks)",
+          gridSize.x,
+          newWidth,
+          averageWorkNanos / 1_000_000,
+          (int) (memoryUsage * 100),
+          pendingChunkCount);
+      chunkGrid.resizeHorizontally(newWidth, newWidth);
+    }
+  }
+}
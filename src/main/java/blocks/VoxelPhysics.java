@@ -0,0 +1,217 @@
+package blocks;
+
+import com.simsilica.mathd.Vec3i;
+import lombok.NonNull;
+
+/**
+ * Moves axis-aligned boxes through the block grid. Each axis is swept on its own: the blocks
+ * between the leading face of the box and its target are checked in order, so that fast boxes
+ * stop at the first solid block instead of tunnelling through it. Blocked boxes can step up onto
+ * low obstacles, and {@link #step(Body, float, float, float)} applies gravity.
+ *
+ * <p>Moving doesn't allocate and never loads chunks, blocks in chunks that aren't resident are
+ * solid. It's safe to move different bodies from several threads.
+ */
+public class VoxelPhysics {
+  /** downward acceleration in blocks per second squared */
+  public static final float GRAVITY = 20;
+
+  private static final float MAX_FALL_SPEED = 50;
+  // gap kept between boxes and blocks, so that touching faces don't count as overlapping
+  private static final float SKIN = 0.001f;
+
+  private final ChunkGrid chunkGrid;
+  private final Vec3i chunkSize;
+  private final int worldHeight;
+
+  public VoxelPhysics(@NonNull ChunkGrid chunkGrid) {
+    this.chunkGrid = chunkGrid;
+    this.chunkSize = chunkGrid.getChunkSize();
+    Vec3i gridSize = chunkGrid.getGridSize();
+    this.worldHeight = gridSize.y * chunkSize.y;
+  }
+
+  /**
+   * Applies gravity to the vertical speed of the body and moves it horizontally by dx and dz and
+   * vertically by its vertical speed.
+   */
+  public void step(@NonNull Body body, float dx, float dz, float tpf) {
+    body.verticalSpeed = Math.max(body.verticalSpeed - GRAVITY * tpf, -MAX_FALL_SPEED);
+    move(body, dx, body.verticalSpeed * tpf, dz);
+    if (body.isBlockedY) body.verticalSpeed = 0;
+  }
+
+  /**
+   * Moves the body as far as possible, first vertically, then along x, then along z. A body on the
+   * ground that is blocked horizontally steps up by at most {@link Body#stepHeight} if that lets
+   * it get further.
+   */
+  public void move(@NonNull Body body, float dx, float dy, float dz) {
+    body.y += sweep(body, 1, dy);
+    body.isBlockedY = body.lastSweepWasBlocked;
+    body.isOnGround = body.isBlockedY && dy < 0;
+
+    float startX = body.x;
+    float startZ = body.z;
+    moveHorizontally(body, dx, dz);
+    boolean isBlocked = body.isBlockedX || body.isBlockedZ;
+    if (!isBlocked || !body.isOnGround || body.stepHeight <= 0) return;
+
+    // retry from above the obstacle and settle back onto the ground
+    float blockedX = body.x;
+    float blockedY = body.y;
+    float blockedZ = body.z;
+    boolean wasBlockedX = body.isBlockedX;
+    boolean wasBlockedZ = body.isBlockedZ;
+    body.x = startX;
+    body.z = startZ;
+    float stepUp = sweep(body, 1, body.stepHeight);
+    body.y += stepUp;
+    moveHorizontally(body, dx, dz);
+    body.y += sweep(body, 1, -stepUp);
+
+    float blockedDistance = Math.abs(blockedX - startX) + Math.abs(blockedZ - startZ);
+    float steppedDistance = Math.abs(body.x - startX) + Math.abs(body.z - startZ);
+    if (steppedDistance <= blockedDistance) {
+      body.x = blockedX;
+      body.y = blockedY;
+      body.z = blockedZ;
+      body.isBlockedX = wasBlockedX;
+      body.isBlockedZ = wasBlockedZ;
+    }
+  }
+
+  private void moveHorizontally(Body body, float dx, float dz) {
+    body.x += sweep(body, 0, dx);
+    body.isBlockedX = body.lastSweepWasBlocked;
+    body.z += sweep(body, 2, dz);
+    body.isBlockedZ = body.lastSweepWasBlocked;
+  }
+
+  /**
+   * @param axis 0 for x, 1 for y, 2 for z
+   * @return the distance the body can move along the axis, at most the given distance
+   */
+  private float sweep(Body body, int axis, float distance) {
+    body.lastSweepWasBlocked = false;
+    if (distance == 0) return 0;
+
+    float center = axis == 0 ? body.x : axis == 1 ? body.y : body.z;
+    float halfExtent = axis == 0 ? body.halfWidth : axis == 1 ? body.halfHeight : body.halfDepth;
+    float sign = Math.signum(distance);
+    float leadingFace = center + sign * halfExtent;
+
+    // the blocks overlapped by the box on the two other axes
+    int axis1 = axis == 0 ? 1 : 0;
+    int axis2 = axis == 2 ? 1 : 2;
+    int min1 = (int) Math.floor(min(body, axis1) + SKIN);
+    int max1 = (int) Math.floor(max(body, axis1) - SKIN);
+    int min2 = (int) Math.floor(min(body, axis2) + SKIN);
+    int max2 = (int) Math.floor(max(body, axis2) - SKIN);
+
+    // the first block layer beyond the leading face up to the layer containing the target
+    int first;
+    int last;
+    if (sign > 0) {
+      first = (int) Math.floor(leadingFace - SKIN) + 1;
+      last = (int) Math.floor(leadingFace + distance - SKIN);
+    } else {
+      first = (int) Math.floor(leadingFace + SKIN) - 1;
+      last = (int) Math.floor(leadingFace + distance + SKIN);
+    }
+    int step = (int) sign;
+
+    for (int layer = first; sign > 0 ? layer <= last : layer >= last; layer += step) {
+      if (isLayerSolid(axis, layer, axis1, min1, max1, axis2, min2, max2)) {
+        body.lastSweepWasBlocked = true;
+        float layerFace = sign > 0 ? layer : layer + 1;
+        float allowed = layerFace - leadingFace - sign * SKIN;
+        // already touching or slightly overlapping, don't move backwards
+        return sign > 0 ? Math.max(allowed, 0) : Math.min(allowed, 0);
+      }
+    }
+    return distance;
+  }
+
+  private boolean isLayerSolid(
+      int axis, int layer, int axis1, int min1, int max1, int axis2, int min2, int max2) {
+    for (int a = min1; a <= max1; a++) {
+      for (int b = min2; b <= max2; b++) {
+        int x = axis == 0 ? layer : axis1 == 0 ? a : b;
+        int y = axis == 1 ? layer : axis1 == 1 ? a : b;
+        int z = axis == 2 ? layer : axis2 == 2 ? b : a;
+        if (isSolid(x, y, z)) return true;
+      }
+    }
+    return false;
+  }
+
+  private static float min(Body body, int axis) {
+    return switch (axis) {
+      case 0 -> body.x - body.halfWidth;
+      case 1 -> body.y - body.halfHeight;
+      default -> body.z - body.halfDepth;
+    };
+  }
+
+  private static float max(Body body, int axis) {
+    return switch (axis) {
+      case 0 -> body.x + body.halfWidth;
+      case 1 -> body.y + body.halfHeight;
+      default -> body.z + body.halfDepth;
+    };
+  }
+
+  // all blocks are solid, the world is closed at the bottom and open at the top. Chunks that aren't
+  // resident are solid too, so bodies stop at their border instead of loading them
+  private boolean isSolid(int x, int y, int z) {
+    if (y < 0) return true;
+    if (y >= worldHeight) return false;
+    Chunk chunk =
+        chunkGrid.getResidentChunk(
+            Math.floorDiv(x, chunkSize.x),
+            Math.floorDiv(y, chunkSize.y),
+            Math.floorDiv(z, chunkSize.z));
+    if (chunk == null) return true;
+    int localX = Math.floorMod(x, chunkSize.x);
+    int localY = Math.floorMod(y, chunkSize.y);
+    int localZ = Math.floorMod(z, chunkSize.z);
+    return chunk.getBlocks()[localX][localY][localZ] != null;
+  }
+
+  /** A box that can be moved, reusable so that moving doesn't allocate. */
+  public static class Body {
+    // center location
+    public float x;
+    public float y;
+    public float z;
+    public float halfWidth;
+    public float halfHeight;
+    public float halfDepth;
+    /** height of obstacles that the body walks onto */
+    public float stepHeight;
+    /** vertical speed in blocks per second, used by {@link #step(Body, float, float, float)} */
+    public float verticalSpeed;
+
+    // results of the last move
+    public boolean isOnGround;
+    public boolean isBlockedX;
+    public boolean isBlockedY;
+    public boolean isBlockedZ;
+
+    private boolean lastSweepWasBlocked;
+
+    public Body(float width, float height, float depth, float stepHeight) {
+      halfWidth = width / 2;
+      halfHeight = height / 2;
+      halfDepth = depth / 2;
+      this.stepHeight = stepHeight;
+    }
+
+    public void setLocation(float x, float y, float z) {
+      this.x = x;
+      this.y = y;
+      this.z = z;
+    }
+  }
+}
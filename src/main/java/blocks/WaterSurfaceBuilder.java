@@ -0,0 +1,314 @@
+package blocks;
+
+import com.jme3.renderer.queue.RenderQueue;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.util.BufferUtils;
+import com.simsilica.mathd.Vec3i;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Builds the top surface of water bodies for horizontal regions of NxN chunks, greedily merged
+ * into large quads that span chunk borders, with one transparent geometry per region. Chunks
+ * don't mesh the top faces of water blocks themselves, see {@link Chunk}.
+ *
+ * <p>Surfaces are built on a background thread once a region hasn't changed for {@link
+ * #REBUILD_DELAY_MILLIS}. The previous surface stays attached in the meantime. Building only reads
+ * chunks that are resident and treats a missing chunk above as open sky, so the region below a
+ * chunk is rebuilt when the chunk is attached or detached. All methods except the building must be
+ * called from the render thread.
+ */
+@Slf4j
+public class WaterSurfaceBuilder {
+  private static final long REBUILD_DELAY_MILLIS = 500;
+  private static final long REPORT_INTERVAL_MILLIS = 10000;
+
+  private final int regionSize;
+  private final Vec3i chunkSize;
+  // chunks above the top layer don't exist, so water at the top of the world is open to the sky
+  private final int layerCount;
+  private final BlockMaterial blockMaterial;
+  private final ExecutorService buildExecutorService;
+  @Getter private final Node node = new Node("waterSurfaces");
+
+  private final Map<Long, Region> regions = new HashMap<>();
+  private final ConcurrentLinkedQueue<Surface> finishedSurfaces = new ConcurrentLinkedQueue<>();
+  private long lastReportAt = System.currentTimeMillis();
+
+  /** @param regionSize number of chunks per side of a region */
+  public WaterSurfaceBuilder(
+      int regionSize,
+      @NonNull Vec3i chunkSize,
+      int layerCount,
+      @NonNull BlockMaterial blockMaterial,
+      @NonNull ExecutorService buildExecutorService) {
+    if (regionSize < 1)
+      throw new IllegalArgumentException("region size must be > 0 but got " + regionSize);
+    this.regionSize = regionSize;
+    this.chunkSize = chunkSize;
+    this.layerCount = layerCount;
+    this.blockMaterial = blockMaterial;
+    this.buildExecutorService = buildExecutorService;
+  }
+
+  /** Does nothing if the chunk is already attached, e.g. with another level of detail. */
+  public void chunkAttached(@NonNull Chunk chunk) {
+    Region region = regions.computeIfAbsent(regionKey(chunk.getLocation(), 0), Region::new);
+    if (!region.chunks.add(chunk)) return;
+    region.changed();
+    regionBelowChanged(chunk);
+  }
+
+  public void chunkDetached(@NonNull Chunk chunk) {
+    Region region = regions.get(regionKey(chunk.getLocation(), 0));
+    if (region == null || !region.chunks.remove(chunk)) return;
+    region.changed();
+    regionBelowChanged(chunk);
+    if (region.chunks.isEmpty()) {
+      regions.remove(region.key);
+      if (region.geometry != null) region.geometry.removeFromParent();
+    }
+  }
+
+  // the chunk covers or uncovers the water at the top of the chunks below
+  private void regionBelowChanged(Chunk chunk) {
+    Region regionBelow = regions.get(regionKey(chunk.getLocation(), -1));
+    if (regionBelow != null) regionBelow.changed();
+  }
+
+  private long regionKey(Vec3i location, int dy) {
+    return ChunkIndex.key(
+        Math.floorDiv(location.x, regionSize),
+        location.y + dy,
+        Math.floorDiv(location.z, regionSize));
+  }
+
+  /** Schedules outdated surfaces and attaches finished ones. */
+  public void update() {
+    long now = System.currentTimeMillis();
+
+    for (Region region : regions.values()) {
+      if (region.builtVersion == region.version
+          || region.isBuildScheduled
+          || now < region.changedAt + REBUILD_DELAY_MILLIS) continue;
+
+      region.isBuildScheduled = true;
+      int version = region.version;
+      List<Chunk> chunks = new ArrayList<>(region.chunks);
+      buildExecutorService.submit(
+          () -> finishedSurfaces.add(new Surface(region, version, buildSurface(chunks))));
+    }
+
+    for (Surface surface = finishedSurfaces.poll();
+        surface != null;
+        surface = finishedSurfaces.poll()) {
+      Region region = surface.region;
+      region.isBuildScheduled = false;
+      // the region has changed or has been removed in the meantime
+      if (surface.version != region.version || regions.get(region.key) != region) continue;
+
+      if (region.geometry != null) region.geometry.removeFromParent();
+      region.geometry = surface.geometry;
+      region.builtVersion = surface.version;
+      if (surface.geometry != null) node.attachChild(surface.geometry);
+    }
+
+    report(now);
+  }
+
+  // null if the chunks contain no open water
+  private Geometry buildSurface(List<Chunk> chunks) {
+    // the region's chunks share their y location, surfaces are grouped by height
+    Vec3i firstLocation = chunks.get(0).getLocation();
+    int minX = Math.floorDiv(firstLocation.x, regionSize) * regionSize * chunkSize.x;
+    int minZ = Math.floorDiv(firstLocation.z, regionSize) * regionSize * chunkSize.z;
+    int width = regionSize * chunkSize.x;
+    int depth = regionSize * chunkSize.z;
+    int chunkY = firstLocation.y * chunkSize.y;
+    boolean[][][] isSurface = new boolean[chunkSize.y][][];
+    Block waterBlock = null;
+
+    for (Chunk chunk : chunks) {
+      Block[][][] blocks = chunk.getBlocks();
+      // a chunk above that isn't resident is open sky until it is attached, see regionBelowChanged
+      Chunk chunkAbove =
+          chunk.getLocation().y + 1 < layerCount ? chunk.getNeighbor(Face.TOP) : null;
+      Block[][][] blocksAbove = chunkAbove != null ? chunkAbove.getBlocks() : null;
+      int offsetX = chunk.getLocation().x * chunkSize.x - minX;
+      int offsetZ = chunk.getLocation().z * chunkSize.z - minZ;
+
+      for (int x = 0; x < chunkSize.x; x++) {
+        for (int y = 0; y < chunkSize.y; y++) {
+          for (int z = 0; z < chunkSize.z; z++) {
+            Block block = blocks[x][y][z];
+            if (block == null || block.type() != BlockType.WATER) continue;
+            Block blockAbove =
+                y + 1 < chunkSize.y
+                    ? blocks[x][y + 1][z]
+                    : blocksAbove != null ? blocksAbove[x][0][z] : null;
+            if (blockAbove != null) continue;
+
+            if (isSurface[y] == null) isSurface[y] = new boolean[width][depth];
+            isSurface[y][offsetX + x][offsetZ + z] = true;
+            waterBlock = block;
+          }
+        }
+      }
+    }
+    if (waterBlock == null) return null;
+
+    List<Float> positions = new ArrayList<>();
+    List<Float> textureCoordinates = new ArrayList<>();
+    for (int y = 0; y < chunkSize.y; y++) {
+      if (isSurface[y] != null) {
+        addQuads(isSurface[y], minX, chunkY + y + 1, minZ, positions, textureCoordinates);
+      }
+    }
+
+    Geometry geometry = new Geometry("waterSurface", createMesh(positions, textureCoordinates));
+    geometry.setMaterial(
+        blockMaterial.usesVertexBlockTypes()
+            ? blockMaterial.forBlocks(true)
+            : blockMaterial.forBlock(waterBlock));
+    geometry.setQueueBucket(RenderQueue.Bucket.Transparent);
+    geometry.setShadowMode(RenderQueue.ShadowMode.Receive);
+    return geometry;
+  }
+
+  // greedily covers the surface cells of one height with rectangles, clearing the cells
+  private static void addQuads(
+      boolean[][] isSurface,
+      int originX,
+      int y,
+      int originZ,
+      List<Float> positions,
+      List<Float> textureCoordinates) {
+    int width = isSurface.length;
+    int depth = isSurface[0].length;
+    for (int z = 0; z < depth; z++) {
+      for (int x = 0; x < width; x++) {
+        if (!isSurface[x][z]) continue;
+
+        int xLength = 1;
+        while (x + xLength < width && isSurface[x + xLength][z]) xLength++;
+        int zLength = 1;
+        while (z + zLength < depth && isRowSurface(isSurface, x, xLength, z + zLength)) zLength++;
+        for (int i = 0; i < xLength; i++) {
+          for (int k = 0; k < zLength; k++) isSurface[x + i][z + k] = false;
+        }
+
+        // same corner order as the top faces of chunk meshes
+        float left = originX + x;
+        float right = left + xLength;
+        float front = originZ + z;
+        float back = front + zLength;
+        Collections.addAll(positions, left, (float) y, front, right, (float) y, front);
+        Collections.addAll(positions, left, (float) y, back, right, (float) y, back);
+        Collections.addAll(textureCoordinates, 0f, 0f, right - left, 0f);
+        Collections.addAll(textureCoordinates, 0f, back - front, right - left, back - front);
+        x += xLength - 1;
+      }
+    }
+  }
+
+  private static boolean isRowSurface(boolean[][] isSurface, int x, int xLength, int z) {
+    for (int i = 0; i < xLength; i++) {
+      if (!isSurface[x + i][z]) return false;
+    }
+    return true;
+  }
+
+  // lit like open water in chunk meshes, i.e. full brightness
+  private Mesh createMesh(List<Float> positions, List<Float> textureCoordinates) {
+    int vertexCount = positions.size() / 3;
+    FloatBuffer positionBuffer = BufferUtils.createFloatBuffer(vertexCount * 3);
+    for (float position : positions) positionBuffer.put(position);
+    FloatBuffer textureCoordinateBuffer = BufferUtils.createFloatBuffer(vertexCount * 2);
+    for (float textureCoordinate : textureCoordinates) {
+      textureCoordinateBuffer.put(textureCoordinate);
+    }
+    FloatBuffer normals = BufferUtils.createFloatBuffer(vertexCount * 3);
+    FloatBuffer colors = BufferUtils.createFloatBuffer(vertexCount * 4);
+    for (int i = 0; i < vertexCount; i++) {
+      normals.put(0).put(1).put(0);
+      colors.put(1).put(1).put(1).put(1);
+    }
+    IntBuffer indexes = BufferUtils.createIntBuffer(vertexCount / 4 * 6);
+    for (int index = 0; index < vertexCount; index += 4) {
+      indexes.put(index + 2).put(index + 3).put(index + 1);
+      indexes.put(index + 1).put(index).put(index + 2);
+    }
+
+    Mesh mesh = new Mesh();
+    mesh.setBuffer(VertexBuffer.Type.Position, 3, positionBuffer.flip());
+    mesh.setBuffer(VertexBuffer.Type.TexCoord, 2, textureCoordinateBuffer.flip());
+    mesh.setBuffer(VertexBuffer.Type.Normal, 3, normals.flip());
+    mesh.setBuffer(VertexBuffer.Type.Color, 4, colors.flip());
+    if (blockMaterial.usesVertexBlockTypes()) {
+      FloatBuffer blockTypes = BufferUtils.createFloatBuffer(vertexCount * 2);
+      for (int i = 0; i < vertexCount; i++) blockTypes.put(BlockType.WATER.ordinal()).put(0);
+      mesh.setBuffer(VertexBuffer.Type.TexCoord2, 2, blockTypes.flip());
+    }
+    mesh.setBuffer(VertexBuffer.Type.Index, 3, indexes.flip());
+    mesh.updateBound();
+    return mesh;
+  }
+
+  private void report(long now) {
+    if (now < lastReportAt + REPORT_INTERVAL_MILLIS) return;
+    lastReportAt = now;
+
+    int surfaceCount = 0;
+    int quadCount = 0;
+    for (Region region : regions.values()) {
+      if (region.geometry == null) continue;
+      surfaceCount++;
+      quadCount += region.geometry.getMesh().getTriangleCount() / 2;
+    }
+    log.info(
+        "Water surfaces: {} of {} regions have water, {} quads",
+        surfaceCount,
+        regions.size(),
+        quadCount);
+  }
+
+  /** NxN chunks on the same chunk layer. */
+  private static class Region {
+    private final long key;
+    // chunks use value based equality, but the same chunk can only be attached once
+    private final Set<Chunk> chunks = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int version = 0;
+    private long changedAt = 0;
+    private boolean isBuildScheduled = false;
+    // null while the region has no water
+    private Geometry geometry;
+    private int builtVersion = -1;
+
+    private Region(long key) {
+      this.key = key;
+    }
+
+    private void changed() {
+      version++;
+      changedAt = System.currentTimeMillis();
+    }
+  }
+
+  private record Surface(Region region, int version, Geometry geometry) {}
+}
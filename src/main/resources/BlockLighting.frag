@@ -12,7 +12,11 @@ uniform vec4[OVERLAY_GRADIENT_STEPS] m_OverlayGradient;
 #else
 uniform vec4 m_Overlay;
 #endif
-#ifdef ANIMATE_AS_WATER
+#ifdef BLOCK_TYPE_COUNT
+uniform vec4 m_BlockTypeGradients[BLOCK_TYPE_COUNT * BLOCK_TYPE_GRADIENT_STRIDE];
+uniform float m_BlockTypeGradientSteps[BLOCK_TYPE_COUNT];
+#endif
+#if defined(ANIMATE_AS_WATER) || defined(BLOCK_TYPE_COUNT)
 uniform float g_Time;
 #endif
 
@@ -140,7 +144,22 @@ void main(){
     vec4 diffuseColor = texture2D(m_DiffuseMap, newTexCoord);
 
     // MY CHANGE
-    #ifdef OVERLAY_GRADIENT
+    #if defined(BLOCK_TYPE_COUNT)
+    float grayscaleValue = dot(diffuseColor.rgb, vec3(0.299, 0.587, 0.114));
+    int blockType = int(texCoord2.x + 0.5);
+    // rotate the grayscale value of the light pixels over time
+    if (blockType == WATER_BLOCK_TYPE && grayscaleValue >= 0.5){
+        grayscaleValue += fract(g_Time/1.5);
+        if (grayscaleValue > 1) grayscaleValue = 2 - grayscaleValue;
+        if (grayscaleValue < 0.5) grayscaleValue = 1 - grayscaleValue;
+    }
+    int gradientSteps = int(m_BlockTypeGradientSteps[blockType] + 0.5);
+    int gradientColorIndex = int(grayscaleValue * float(gradientSteps - 1));
+    int gradientOffset = blockType * BLOCK_TYPE_GRADIENT_STRIDE;
+    vec4 gradientColor1 = m_BlockTypeGradients[gradientOffset + gradientColorIndex];
+    vec4 gradientColor2 = gradientColorIndex == (gradientSteps - 1) ? gradientColor1 : m_BlockTypeGradients[gradientOffset + gradientColorIndex + 1];
+    diffuseColor = mix(gradientColor1, gradientColor2, grayscaleValue);
+    #elif defined(OVERLAY_GRADIENT)
     float grayscaleValue = dot(diffuseColor.rgb, vec3(0.299, 0.587, 0.114));
     #ifdef ANIMATE_AS_WATER
     // rotate the grayscale value of the light pixels over time
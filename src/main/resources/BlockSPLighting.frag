@@ -13,6 +13,10 @@ uniform vec4[OVERLAY_GRADIENT_STEPS] m_OverlayGradient;
 #else
 uniform vec4 m_Overlay;
 #endif
+#ifdef BLOCK_TYPE_COUNT
+uniform vec4 m_BlockTypeGradients[BLOCK_TYPE_COUNT * BLOCK_TYPE_GRADIENT_STRIDE];
+uniform float m_BlockTypeGradientSteps[BLOCK_TYPE_COUNT];
+#endif
 
 // fog - jayfella
 #ifdef USE_FOG
@@ -149,7 +153,16 @@ void main(){
     vec4 diffuseColor = texture2D(m_DiffuseMap, newTexCoord);
 
     // MY CHANGE
-    #ifdef OVERLAY_GRADIENT
+    #if defined(BLOCK_TYPE_COUNT)
+    float grayscaleValue = dot(diffuseColor.rgb, vec3(0.299, 0.587, 0.114));
+    int blockType = int(texCoord2.x + 0.5);
+    int gradientSteps = int(m_BlockTypeGradientSteps[blockType] + 0.5);
+    int gradientColorIndex = int(grayscaleValue * float(gradientSteps - 1));
+    int gradientOffset = blockType * BLOCK_TYPE_GRADIENT_STRIDE;
+    vec4 gradientColor1 = m_BlockTypeGradients[gradientOffset + gradientColorIndex];
+    vec4 gradientColor2 = gradientColorIndex == (gradientSteps - 1) ? gradientColor1 : m_BlockTypeGradients[gradientOffset + gradientColorIndex + 1];
+    diffuseColor = mix(gradientColor1, gradientColor2, grayscaleValue);
+    #elif defined(OVERLAY_GRADIENT)
     float grayscaleValue = dot(diffuseColor.rgb, vec3(0.299, 0.587, 0.114));
     int gradientColorIndex = int(grayscaleValue * (OVERLAY_GRADIENT_STEPS - 1));
     vec4 gradientColor1 = m_OverlayGradient[gradientColorIndex];
@@ -0,0 +1,214 @@
+package blocks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.jme3.math.ColorRGBA;
+import com.pholser.junit.quickcheck.From;
+import com.pholser.junit.quickcheck.Property;
+import com.pholser.junit.quickcheck.generator.GenerationStatus;
+import com.pholser.junit.quickcheck.generator.Generator;
+import com.pholser.junit.quickcheck.generator.InRange;
+import com.pholser.junit.quickcheck.random.SourceOfRandomness;
+import com.pholser.junit.quickcheck.runner.JUnitQuickcheck;
+import com.simsilica.mathd.Vec3i;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+@RunWith(JUnitQuickcheck.class)
+public class ChunkCodecTest {
+  private static final Vec3i CHUNK_SIZE = new Vec3i(16, 16, 16);
+  // null counts as a palette entry
+  private static final int MAX_DISTINCT_BLOCKS = 255;
+
+  private static final byte RUN_LENGTH_ENCODING = 0;
+  private static final byte BIT_PACKED_ENCODING = 1;
+  private static final byte DELTA_ENCODING = 2;
+
+  private final ChunkCodec codec = new ChunkCodec(CHUNK_SIZE);
+
+  @Property
+  public void fullEncodingRoundTrips(@From(Chunks.class) Block[][][] blocks) {
+    assertArrayEquals(blocks, codec.decode(codec.encode(blocks)));
+  }
+
+  @Property
+  public void deltaEncodingRoundTrips(
+      @From(Chunks.class) Block[][][] baseline,
+      @InRange(minInt = 0, maxInt = 4096) int changeCount,
+      @InRange(minInt = 1, maxInt = MAX_DISTINCT_BLOCKS) int distinctBlockCount,
+      long seed) {
+    Block[][][] blocks = change(baseline, changeCount, distinctBlockCount, new Random(seed));
+
+    ByteBuffer buffer = codec.encodeDelta(blocks, baseline);
+
+    assertTrue(buffer.remaining() <= codec.encode(blocks).remaining());
+    assertArrayEquals(blocks, codec.decode(buffer, () -> copy(baseline)));
+  }
+
+  @Property
+  public void tooManyDistinctBlocksAreRejected(
+      @InRange(minInt = MAX_DISTINCT_BLOCKS + 1, maxInt = 4096) int distinctBlockCount,
+      long seed) {
+    Block[][][] blocks = noise(distinctBlocks(distinctBlockCount), new Random(seed));
+    // all distinct blocks must be in the chunk
+    int i = 0;
+    for (int x = 0; x < CHUNK_SIZE.x; x++) {
+      for (int y = 0; y < CHUNK_SIZE.y; y++) {
+        for (int z = 0; z < CHUNK_SIZE.z && i < distinctBlockCount; z++) {
+          blocks[x][y][z] = block(i++);
+        }
+      }
+    }
+
+    assertThrows(IllegalArgumentException.class, () -> codec.encode(blocks));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> codec.encodeDelta(blocks, new Block[CHUNK_SIZE.x][CHUNK_SIZE.y][CHUNK_SIZE.z]));
+  }
+
+  @Property
+  public void denseDifferencesAreFullyEncoded(long seed) {
+    // the baseline has no blocks in common with the chunk, so every voxel differs and the palette
+    // of the differences is as large as it gets without overflowing
+    Block[][][] baseline = noise(distinctBlocks(MAX_DISTINCT_BLOCKS), new Random(seed));
+    Block[][][] blocks = new Block[CHUNK_SIZE.x][CHUNK_SIZE.y][CHUNK_SIZE.z];
+    int i = 0;
+    for (int x = 0; x < CHUNK_SIZE.x; x++) {
+      for (int y = 0; y < CHUNK_SIZE.y; y++) {
+        for (int z = 0; z < CHUNK_SIZE.z; z++) {
+          blocks[x][y][z] = block(MAX_DISTINCT_BLOCKS + i++ % MAX_DISTINCT_BLOCKS);
+        }
+      }
+    }
+
+    ByteBuffer buffer = codec.encodeDelta(blocks, baseline);
+
+    assertEquals(BIT_PACKED_ENCODING, buffer.get(2));
+    assertArrayEquals(blocks, codec.decode(buffer));
+  }
+
+  @Test
+  public void largestPaletteRoundTrips() {
+    Block[][][] blocks = noise(distinctBlocks(MAX_DISTINCT_BLOCKS), new Random(0));
+    int i = 0;
+    for (int x = 0; x < CHUNK_SIZE.x && i < MAX_DISTINCT_BLOCKS; x++) {
+      for (int z = 0; z < CHUNK_SIZE.z && i < MAX_DISTINCT_BLOCKS; z++) {
+        blocks[x][0][z] = block(i++);
+      }
+    }
+
+    assertArrayEquals(blocks, codec.decode(codec.encode(blocks)));
+  }
+
+  @Test
+  public void emptyChunksRoundTrip() {
+    Block[][][] blocks = new Block[CHUNK_SIZE.x][CHUNK_SIZE.y][CHUNK_SIZE.z];
+
+    ByteBuffer buffer = codec.encode(blocks);
+    // only the header, the voxels are bit packed with 0 bits per index
+    assertEquals(3, buffer.remaining());
+    assertArrayEquals(blocks, codec.decode(buffer));
+
+    Block[][][] baseline = noise(distinctBlocks(8), new Random(0));
+    assertArrayEquals(blocks, codec.decode(codec.encodeDelta(blocks, baseline), () -> baseline));
+  }
+
+  @Test
+  public void unchangedChunksAreDeltaEncodedWithoutVoxels() {
+    Block[][][] baseline = noise(distinctBlocks(8), new Random(0));
+
+    ByteBuffer buffer = codec.encodeDelta(copy(baseline), baseline);
+
+    assertEquals(DELTA_ENCODING, buffer.get(2));
+    assertEquals(4, buffer.remaining());
+    assertArrayEquals(baseline, codec.decode(buffer, () -> copy(baseline)));
+  }
+
+  @Test
+  public void encodingMatchesTheChunkContent() {
+    Block[] blocks = distinctBlocks(4);
+    assertEquals(RUN_LENGTH_ENCODING, codec.encode(columns(blocks, new Random(0))).get(2));
+    assertEquals(BIT_PACKED_ENCODING, codec.encode(noise(blocks, new Random(0))).get(2));
+  }
+
+  public static class Chunks extends Generator<Block[][][]> {
+    public Chunks() {
+      super(Block[][][].class);
+    }
+
+    @Override
+    public Block[][][] generate(SourceOfRandomness random, GenerationStatus status) {
+      Block[] blocks = distinctBlocks(random.nextInt(1, MAX_DISTINCT_BLOCKS));
+      Random chunkRandom = new Random(random.nextLong());
+      return random.nextBoolean() ? columns(blocks, chunkRandom) : noise(blocks, chunkRandom);
+    }
+  }
+
+  // terrain like chunks with long runs, which are run length encoded
+  private static Block[][][] columns(Block[] blocks, Random random) {
+    Block[][][] chunk = new Block[CHUNK_SIZE.x][CHUNK_SIZE.y][CHUNK_SIZE.z];
+    for (int x = 0; x < CHUNK_SIZE.x; x++) {
+      for (int z = 0; z < CHUNK_SIZE.z; z++) {
+        int height = random.nextInt(CHUNK_SIZE.y + 1);
+        Block block = blocks[random.nextInt(blocks.length)];
+        for (int y = 0; y < height; y++) chunk[x][y][z] = block;
+      }
+    }
+    return chunk;
+  }
+
+  // chunks with a random block or air per voxel, which are bit packed
+  private static Block[][][] noise(Block[] blocks, Random random) {
+    Block[][][] chunk = new Block[CHUNK_SIZE.x][CHUNK_SIZE.y][CHUNK_SIZE.z];
+    for (int x = 0; x < CHUNK_SIZE.x; x++) {
+      for (int y = 0; y < CHUNK_SIZE.y; y++) {
+        for (int z = 0; z < CHUNK_SIZE.z; z++) {
+          int i = random.nextInt(blocks.length + 1);
+          chunk[x][y][z] = i == blocks.length ? null : blocks[i];
+        }
+      }
+    }
+    return chunk;
+  }
+
+  private static Block[][][] change(
+      Block[][][] baseline, int changeCount, int distinctBlockCount, Random random) {
+    Block[][][] chunk = copy(baseline);
+    // overlaps with the blocks of the baseline, which are also the first distinct blocks
+    Block[] blocks = distinctBlocks(distinctBlockCount);
+    for (int i = 0; i < changeCount; i++) {
+      int j = random.nextInt(blocks.length + 1);
+      chunk[random.nextInt(CHUNK_SIZE.x)][random.nextInt(CHUNK_SIZE.y)][
+              random.nextInt(CHUNK_SIZE.z)] =
+          j == blocks.length ? null : blocks[j];
+    }
+    return chunk;
+  }
+
+  private static Block[][][] copy(Block[][][] blocks) {
+    Block[][][] copy = new Block[CHUNK_SIZE.x][CHUNK_SIZE.y][];
+    for (int x = 0; x < CHUNK_SIZE.x; x++) {
+      for (int y = 0; y < CHUNK_SIZE.y; y++) copy[x][y] = blocks[x][y].clone();
+    }
+    return copy;
+  }
+
+  private static Block[] distinctBlocks(int count) {
+    Block[] blocks = new Block[count];
+    for (int i = 0; i < count; i++) blocks[i] = block(i);
+    return blocks;
+  }
+
+  // distinct for distinct i, the transparency matches the type as decoded chunks derive it from it
+  private static Block block(int i) {
+    BlockType type = BlockType.values()[i % BlockType.values().length];
+    ColorRGBA color = new ColorRGBA(i / 4096f, (i % 7) / 7f, 0.5f, 1);
+    return new Block(type, color, type.isTransparent());
+  }
+}